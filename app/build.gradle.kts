@@ -29,6 +29,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_1_8
         targetCompatibility = JavaVersion.VERSION_1_8
     }
+    testOptions {
+        // android.util.Log gets called from the code under test
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -0,0 +1,110 @@
+package net.theonicolaou.p2pvoice;
+
+import java.util.Arrays;
+
+// Keeps the audio delay from creeping up or down over a long call, since the other end's sample clock
+// never runs at exactly the rate of ours. The delay from capture on the other end to playout here is
+// noisy, but its minimum over a window mostly isn't, so the drift is the slope between the minimums
+// of successive windows (the median of the last few, which ignores the jumps when the jitter buffer
+// changes its delay on purpose). It gets corrected by stretching or squeezing decoded frames by a
+// sample now and then, which nobody can hear. The samples it added or removed are counted back into
+// the delay, so the correction doesn't hide the drift it's correcting. Decoder thread only, except for
+// getDrift().
+public class AudioDriftCompensator {
+    private static final long window = 10_000_000;          // in microseconds
+    private static final int slope_count = 7;               // windows the drift is the median of
+    private static final double drift_max = 0.001;          // 1000 ppm, anything more is not a clock
+    private static final int samples_per_ms = 48;
+
+    private final double[] slopes = new double[slope_count];
+    private final double[] slopes_sorted = new double[slope_count];
+    private int slope_next = 0, slope_filled = 0;
+    private long window_start = 0, window_min, window_min_time;
+    private long previous_min, previous_min_time;
+    private boolean previous_valid = false;
+    private double drift = 0;           // positive when the other end runs fast and the delay grows
+    private double pending = 0;         // in samples, still to be removed (or added, if negative)
+    private long adjusted = 0;          // in samples, removed minus added so far
+
+    private volatile int stat_drift = 0;    // in ppm
+
+    // A message captured at capture (on the other end's clock) starts playing at playout (on ours),
+    // both in microseconds
+    public void onPlayout(long capture, long playout) {
+        long delay = playout - capture + adjusted * 1000 / samples_per_ms;
+        if (window_start == 0) {
+            window_start = playout;
+            window_min = Long.MAX_VALUE;
+        }
+        if (delay < window_min) {
+            window_min = delay;
+            window_min_time = playout;
+        }
+        if (playout - window_start < window)
+            return;
+
+        if (previous_valid && window_min_time > previous_min_time) {
+            slopes[slope_next] = (double) (window_min - previous_min) / (window_min_time - previous_min_time);
+            slope_next = (slope_next + 1) % slope_count;
+            slope_filled = Math.min(slope_filled + 1, slope_count);
+            System.arraycopy(slopes, 0, slopes_sorted, 0, slope_filled);
+            Arrays.sort(slopes_sorted, 0, slope_filled);
+            drift = Math.max(-drift_max, Math.min(drift_max, slopes_sorted[slope_filled / 2]));
+            stat_drift = (int) Math.round(drift * 1_000_000);
+        }
+        previous_min = window_min;
+        previous_min_time = window_min_time;
+        previous_valid = true;
+        window_start = playout;
+        window_min = Long.MAX_VALUE;
+    }
+
+    // For when playback stopped for a while. The delay after it has nothing to do with the one before,
+    // but the clocks are still the same, so the drift stays.
+    public void restart() {
+        window_start = 0;
+        previous_valid = false;
+    }
+
+    // How many samples to stretch (positive) or squeeze (negative) the next frame of the given size by
+    public int adjust(int samples) {
+        pending += samples * drift;
+        if (pending >= 1) {
+            pending -= 1;
+            adjusted++;
+            return -1;
+        } else if (pending <= -1) {
+            pending += 1;
+            adjusted--;
+            return 1;
+        }
+        return 0;
+    }
+
+    // Resamples 16 bit mono PCM to a slightly different length, interpolating linearly between samples
+    public static void stretch(byte[] in, int samples_in, byte[] out, int samples_out) {
+        if (samples_in < 2 || samples_out < 2) {
+            System.arraycopy(in, 0, out, 0, 2 * Math.min(samples_in, samples_out));
+            return;
+        }
+        for (int i = 0; i < samples_out; i++) {
+            long position = ((long) i * (samples_in - 1) << 16) / (samples_out - 1);  // 16.16 fixed point
+            int index = (int) (position >> 16);
+            int fraction = (int) (position & 0xffff);
+            int a = sample(in, index);
+            int b = index + 1 < samples_in ? sample(in, index + 1) : a;
+            int value = a + (int) (((long) (b - a) * fraction) >> 16);
+            out[2 * i] = (byte) value;
+            out[2 * i + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private static int sample(byte[] pcm, int index) {
+        return (short) ((pcm[2 * index] & 0xff) | (pcm[2 * index + 1] << 8));
+    }
+
+    // In ppm, positive when the other end's clock runs fast
+    public int getDrift() {
+        return stat_drift;
+    }
+}
@@ -6,6 +6,7 @@ import android.media.AudioDeviceInfo;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.media.audiofx.AcousticEchoCanceler;
@@ -19,7 +20,6 @@ import androidx.annotation.RequiresPermission;
 import com.theeasiestway.opus.Constants;
 import com.theeasiestway.opus.Opus;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,15 +27,44 @@ public class AudioHandler {
     public static class MicFailed extends Exception {}
     public static class PlaybackFailed extends Exception {}
 
+    public abstract static class OutputStatsListener {
+        // Called on the decoder thread. latency (from AudioTrack write to the speaker) and buffer_size in
+        // milliseconds, underruns since the decoder started, drift of the other end's clock in ppm.
+        public abstract void onOutputStats(int latency, int buffer_size, int underruns, int drift);
+    }
+
     private static final String TAG = "AudioHandler";
     private static final int sample_rate = 48000;
     private static final int buffer_size_wanted = sample_rate / 16; // in bytes, 31.3ms of audio data
-    private static final int frame_size = 960;  // in bytes, 10ms
+    private static final int samples_per_ms = sample_rate / 1000;
+    private static final int frame_duration_default = 10;  // in milliseconds
+    private static final int frame_duration_max = 60;      // in milliseconds, the longest Opus allows
+    private static final int message_duration_max = 120;   // in milliseconds, all frames of a message together
     private static final int queue_size = 50;
+    private static final int bitrate_min = 16000;   // in bits/s, still fine for speech
+    // Bitrate target at or above which each frame duration (in ms) and frame count per message is used.
+    // Longer frames and more of them per message add latency, but save headers, packets and wakeups,
+    // which is what a congested link needs.
+    private static final int[][] packetization_ladder = {
+            {40000, 10, 1},
+            {28000, 20, 1},
+            {20000, 20, 2},
+            {0, 20, 3},
+    };
+    // Silence and mute are sent for this long (in microseconds) before going quiet, and the last message
+    // is flagged so the other end doesn't try to conceal what doesn't come after it
+    private static final long dtx_hangover = 200_000;
+    private static final long silence_energy_max = 100 * 100;  // mean square of the samples, about -50 dBFS
+    private static final int redundancy_loss_min = 2;       // in percent, reported by the other end
+    private static final long loss_report_interval = 1000_000_000L;    // in nanoseconds
+    private static final long output_check_interval = 100_000_000L;    // in nanoseconds
+    private static final long output_report_interval = 1000_000_000L;  // in nanoseconds
+    private static final int output_burst_default = 192;   // in frames (4ms), if the device doesn't say
     private static final Constants.SampleRate opus_sample_rate = Constants.SampleRate.Companion._48000();
     private static final Constants.Channels opus_channels = Constants.Channels.Companion.mono();
     private static final Constants.Application opus_application = Constants.Application.Companion.voip();
-    private static final Constants.FrameSize opus_frame_size = Constants.FrameSize.Companion._custom(frame_size / 2);   // in samples
+    // By duration in units of 2.5ms (120 samples), the shortest Opus frame
+    private static final Constants.FrameSize[] opus_frame_sizes = new Constants.FrameSize[frame_duration_max * 2 / 5 + 1];
 
     private final List<AudioDeviceInfo> audio_outputs = new ArrayList<>();
     private int audio_output_current = 0;
@@ -47,17 +76,40 @@ public class AudioHandler {
     private final AudioAttributes audio_attributes;
     private final AudioFormat audio_format;
     private final int buffer_size;
+    private final boolean low_latency;
+    private final int output_burst;     // in frames, what the output mixes at a time
+    private final AudioTimestamp output_timestamp = new AudioTimestamp();
+    private final AudioDriftCompensator drift_compensator = new AudioDriftCompensator();
+    private final byte[] output_stretched = new byte[(frame_duration_max * samples_per_ms + 1) * 2];
+    private long output_check_last, output_report_last, output_frames_written;
+    private int output_underruns_last, output_underruns;
+    private boolean output_idle;
+    private volatile OutputStatsListener output_stats_listener = null;
     private Constants.Bitrate opus_bitrate;
+    private final int bitrate_max;
+    private volatile int bitrate_target;
+    private volatile int loss_remote = 0;
+    // Frame duration (in ms) and frames per message. Swapped as a whole, so the encoder never sees half
+    // of a change.
+    private volatile int[] packetization = {frame_duration_default, 1};
+    private volatile boolean packetization_adaptive = true;
+    private long loss_report_last, loss_received_last, loss_lost_last;
     private Thread thread_encoder, thread_decoder;
     private final ConnectionMessagePipe pipe_in;
-    private ConnectionMessagePipe pipe_out = null;
+    private final AudioJitterBuffer jitter_buffer = new AudioJitterBuffer(frame_duration_default * 1000L);
+    private ConnectionPipe pipe_out = null;
+    private volatile LatencyStats latency_stats = null;
+    private volatile LipSync lip_sync = null;
     private boolean started_encoding = false, started_decoding, released = false;
     private volatile boolean thread_encoder_work, muted = false;
 
+    // low_latency asks for the fast output path, and keeps the player's buffer as small as it can be
+    // without running dry
     @RequiresPermission(Manifest.permission.RECORD_AUDIO)
-    AudioHandler(int bitrate, AudioManager audio_manager) throws MicFailed, PlaybackFailed {
-        Log.d(TAG, "Creating for bitrate=" + bitrate);
+    AudioHandler(int bitrate, AudioManager audio_manager, boolean low_latency) throws MicFailed, PlaybackFailed {
+        Log.d(TAG, "Creating for bitrate=" + bitrate + ", low_latency=" + low_latency);
         this.audio_manager = audio_manager;
+        this.low_latency = low_latency;
 
         if (audio_manager != null)
             audio_manager.setMode(AudioManager.MODE_IN_COMMUNICATION);
@@ -97,19 +149,39 @@ public class AudioHandler {
                 .setSampleRate(sample_rate)
                 .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
                 .build();
-        player = new AudioTrack(
-                audio_attributes,
-                audio_format,
-                buffer_size,
-                AudioTrack.MODE_STREAM,
-                recorder.getAudioSessionId()
-        );
+        AudioTrack.Builder player_builder = new AudioTrack.Builder()
+                .setAudioAttributes(audio_attributes)
+                .setAudioFormat(audio_format)
+                .setBufferSizeInBytes(buffer_size)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setSessionId(recorder.getAudioSessionId());
+        if (low_latency)
+            player_builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        try {
+            player = player_builder.build();
+        } catch (UnsupportedOperationException e) {
+            throw new PlaybackFailed();
+        }
         if (player.getState() == AudioTrack.STATE_UNINITIALIZED)
             throw new PlaybackFailed();
+        if (low_latency && player.getPerformanceMode() != AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+            Log.w(TAG, "Low latency output not available, only sizing its buffer");
+
+        int burst = 0;
+        try {
+            if (audio_manager != null)
+                burst = Integer.parseInt(audio_manager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Output burst size unknown");
+        }
+        output_burst = burst > 0 ? burst : output_burst_default;
 
         opus_bitrate = Constants.Bitrate.Companion.instance(bitrate);
+        bitrate_max = bitrate;
+        setTargetBitrate(bitrate);
 
-        pipe_in = new ConnectionMessagePipe(queue_size, true);
+        // Only fed by the connection's receiving thread, and only read by the decoder thread
+        pipe_in = new ConnectionMessagePipe(queue_size, true, true);
 
         // Get output devices and set audio mode
         if (audio_manager != null) {
@@ -175,26 +247,72 @@ public class AudioHandler {
 
         thread_encoder = new Thread(() -> {
             recorder.startRecording();
-            ByteBuffer raw_audio_buffer = ByteBuffer.allocateDirect(frame_size);
-            byte[] raw_audio_array = new byte[frame_size];
-            byte[] muted_array = new byte[frame_size];
-            byte[] encoded_audio;
+            // opus.encode() takes the whole array as the frame, so keep arrays around for each duration.
+            // Recording goes straight into them.
+            byte[][] raw_audio_arrays = new byte[frame_duration_max + 1][];
+            byte[][] muted_arrays = new byte[frame_duration_max + 1][];
+            byte[] raw_audio_array, encoded_audio;
+            AudioPacketizer packetizer = new AudioPacketizer();
+            int bitrate = bitrate_max, frame_duration = frame_duration_default, frames_per_message = 1;
+            long silence = 0, capture_first = 0;
+            boolean quiet = false;
             while (thread_encoder_work) {
-                raw_audio_buffer.rewind();
-                int bytes_read = recorder.read(raw_audio_buffer, frame_size, AudioRecord.READ_BLOCKING);
+                // Copies of the previous message take about as much as the message itself
+                boolean redundant = loss_remote >= redundancy_loss_min;
+                int bitrate_wanted = redundant ? Math.max(bitrate_min, bitrate_target / 2) : bitrate_target;
+                if (bitrate != bitrate_wanted) {
+                    bitrate = bitrate_wanted;
+                    opus.encoderSetBitrate(Constants.Bitrate.Companion.instance(bitrate));
+                }
+                // Only between messages, so all frames of one have the same duration
+                if (packetizer.getFrameCount() == 0) {
+                    int[] packetization = this.packetization;
+                    frame_duration = packetization[0];
+                    frames_per_message = packetization[1];
+                }
+                int frame_size = frame_duration * samples_per_ms * 2;   // in bytes
+                raw_audio_array = raw_audio_arrays[frame_duration];
+                if (raw_audio_array == null) {
+                    raw_audio_array = raw_audio_arrays[frame_duration] = new byte[frame_size];
+                    muted_arrays[frame_duration] = new byte[frame_size];
+                }
+
+                int bytes_read = recorder.read(raw_audio_array, 0, frame_size, AudioRecord.READ_BLOCKING);
+                // The read returns once the whole frame was recorded, so that's when it started
+                long capture = System.nanoTime() / 1000 - frame_duration * 1000L;
                 if (bytes_read < 0) {
                     // TODO: try to auto-restart the recorder instead
                     Log.e(TAG, "AudioRecorder failed with code " + bytes_read);
                     break;
                 }
-                if (muted) {
-                    encoded_audio = opus.encode(muted_array, opus_frame_size);
+                boolean silent = muted || isSilent(raw_audio_array, bytes_read);
+
+                // Stop sending (and encoding) once it's been quiet for a while
+                if (!silent) {
+                    silence = 0;
+                    quiet = false;
+                } else if (quiet) {
+                    continue;
                 } else {
-                    raw_audio_buffer.get(raw_audio_array, 0, bytes_read);
-                    encoded_audio = opus.encode(raw_audio_array, opus_frame_size);
+                    silence += frame_duration * 1000L;
+                    quiet = silence >= dtx_hangover;
                 }
-                if (pipe_out != null && encoded_audio != null)
-                    pipe_out.send(Connection.DATA_AUDIO, encoded_audio);
+
+                encoded_audio = opus.encode(muted ? muted_arrays[frame_duration] : raw_audio_array, opusFrameSize(frame_duration * samples_per_ms));
+                if (encoded_audio == null)
+                    continue;
+                if (packetizer.getFrameCount() == 0)
+                    capture_first = capture;
+                packetizer.add(encoded_audio);
+                if (packetizer.getFrameCount() < frames_per_message && !quiet)
+                    continue;
+
+                ConnectionMessage message = packetizer.build(redundant, quiet);
+                message.timestamp = capture_first;
+                if (pipe_out != null)
+                    pipe_out.send(message);
+                else
+                    message.recycle();
             }
             recorder.stop();
         });
@@ -245,20 +363,126 @@ public class AudioHandler {
 
         thread_decoder = new Thread(() -> {
             ConnectionMessage encoded_audio;
-            byte[] raw_audio_array;
+            byte[] raw_audio_array, packet;
+            // opus.decode() takes the whole array as the packet, so keep an array around for each size.
+            // An empty packet tells Opus the frame was lost, so it conceals it instead.
+            byte[][] packet_arrays = new byte[AudioPacketizer.opus_packet_size_max + 1][];
+            byte[] packet_lost = new byte[0];
+            int[] frame_offsets = new int[AudioPacketizer.frames_max];
+            int[] frame_sizes = new int[AudioPacketizer.frames_max];
+            // What the last message held, which is how much gets concealed when one is missing
+            int frame_count_last = 1, frame_samples_last = frame_duration_default * samples_per_ms;
+            long message_duration = frame_duration_default * 1000L;   // in microseconds
+            boolean open = true;
+            loss_report_last = System.nanoTime();
+            loss_received_last = jitter_buffer.getReceivedFrames();
+            loss_lost_last = jitter_buffer.getLostFrames();
+            output_check_last = output_report_last = System.nanoTime();
+            output_frames_written = 0;
+            output_underruns = 0;
+            output_underruns_last = player.getUnderrunCount();
+            output_idle = true;
+            // Start from the smallest buffer that could work, underruns will tell if it's too small
+            if (low_latency)
+                player.setBufferSizeInFrames(2 * output_burst);
             player.play();
-            while (true) {
-                encoded_audio = pipe_in.receive();
-                if (encoded_audio == null)
-                    break;
-                if (encoded_audio.type != Connection.DATA_AUDIO) {
-                    Log.e(TAG, "Received frame of wrong message type " + encoded_audio.type);
-                    continue;
+            while (open) {
+                // Wait for audio while there's nothing to play, otherwise just take whatever has arrived
+                if (!jitter_buffer.isPlaying()) {
+                    encoded_audio = pipe_in.receive();
+                    if (encoded_audio == null)
+                        break;
+                } else {
+                    encoded_audio = pipe_in.poll();
+                }
+                while (encoded_audio != null) {
+                    if (encoded_audio.type != Connection.DATA_AUDIO) {
+                        Log.e(TAG, "Received frame of wrong message type " + encoded_audio.type);
+                        encoded_audio.recycle();
+                    } else {
+                        ConnectionMessage recovered = null;
+                        if ((encoded_audio.flags & ConnectionMessage.FLAG_REDUNDANT) != 0)
+                            recovered = AudioPacketizer.unpackRedundant(encoded_audio);
+                        long duration = AudioPacketizer.messageDuration(encoded_audio);
+                        if (duration > 0 && duration != message_duration) {
+                            message_duration = duration;
+                            jitter_buffer.setMessageDuration(duration);
+                        }
+                        jitter_buffer.put(encoded_audio);
+                        if (recovered != null)
+                            jitter_buffer.putRecovered(recovered);
+                    }
+                    encoded_audio = pipe_in.poll();
+                }
+                if (!pipe_in.isOpen())
+                    open = false;
+                reportLoss();
+                tuneOutput();
+
+                LipSync lip_sync = this.lip_sync;
+                jitter_buffer.setExtraDelay(lip_sync != null ? lip_sync.getAudioDelay() : 0);
+                encoded_audio = jitter_buffer.next();
+                if (encoded_audio == null && !jitter_buffer.isPlaying()) {
+                    drift_compensator.restart();
+                    continue;   // Still buffering
+                }
+                LatencyStats latency_stats = this.latency_stats;
+                long timestamp = 0, decoder_input = 0;
+                int frame_count = 0;
+                if (encoded_audio != null) {
+                    if (latency_stats != null) {
+                        timestamp = encoded_audio.timestamp;
+                        decoder_input = latency_stats.onDecoderInput(encoded_audio);
+                    }
+                    frame_count = AudioPacketizer.unpackFrames(encoded_audio, frame_offsets, frame_sizes);
+                }
+
+                // Still decode frames that get discarded, so the decoder's state stays in sync
+                boolean discard = jitter_buffer.shouldDiscard(), played = false;
+                if (frame_count == 0) {
+                    // Missing or broken, conceal as much as the last one held
+                    for (int i = 0; i < frame_count_last; i++) {
+                        raw_audio_array = opus.decode(packet_lost, opusFrameSize(frame_samples_last));
+                        if (raw_audio_array != null && !discard)
+                            play(raw_audio_array, Math.min(raw_audio_array.length / 2, frame_samples_last));
+                    }
+                } else {
+                    if (!discard && encoded_audio.timestamp != 0) {
+                        long playout = outputPlayout();
+                        if (playout != 0) {
+                            drift_compensator.onPlayout(encoded_audio.timestamp, playout);
+                            if (lip_sync != null)
+                                lip_sync.onAudioPlayout(encoded_audio.timestamp, playout);
+                        }
+                    }
+                    for (int i = 0; i < frame_count; i++) {
+                        int size = frame_sizes[i];
+                        if (size > AudioPacketizer.opus_packet_size_max) {
+                            packet = new byte[size];
+                        } else {
+                            packet = packet_arrays[size];
+                            if (packet == null)
+                                packet = packet_arrays[size] = new byte[size];
+                        }
+                        System.arraycopy(encoded_audio.data, frame_offsets[i], packet, 0, size);
+                        int samples = AudioPacketizer.opusSamples(packet, 0, size);
+                        raw_audio_array = opus.decode(packet, opusFrameSize(samples));
+                        if (raw_audio_array != null && !discard) {
+                            play(raw_audio_array, Math.min(raw_audio_array.length / 2, samples));
+                            played = true;
+                        }
+                        frame_samples_last = samples;
+                    }
+                    frame_count_last = frame_count;
+                }
+                if (encoded_audio != null) {
+                    encoded_audio.recycle();
+                    // Concealed frames don't count
+                    if (played && latency_stats != null)
+                        latency_stats.onRendered(LatencyStats.MEDIA_AUDIO, timestamp, decoder_input);
                 }
-                raw_audio_array = opus.decode(encoded_audio.data, opus_frame_size);
-                if (raw_audio_array != null)
-                    player.write(ByteBuffer.wrap(raw_audio_array), frame_size, AudioTrack.WRITE_BLOCKING);
             }
+            jitter_buffer.clear();
             player.stop();
         });
 
@@ -305,11 +529,161 @@ public class AudioHandler {
         released = true;
     }
 
-    public void setOutgoingMessagePipe(ConnectionMessagePipe pipe) {
+    // Based on the mean square of the 16 bit samples
+    private static boolean isSilent(byte[] samples, int size) {
+        long energy = 0;
+        for (int i = 0; i + 1 < size; i += 2) {
+            int sample = (short) ((samples[i] & 0xff) | (samples[i + 1] << 8));
+            energy += sample * sample;
+        }
+        return energy <= silence_energy_max * (size / 2);
+    }
+
+    private static Constants.FrameSize opusFrameSize(int samples) {
+        int index = Math.min(samples / 120, opus_frame_sizes.length - 1);
+        Constants.FrameSize frame_size = opus_frame_sizes[index];
+        if (frame_size == null)
+            frame_size = opus_frame_sizes[index] = Constants.FrameSize.Companion._custom(index * 120);
+        return frame_size;
+    }
+
+    // Writes the decoded samples out, give or take one to make up for clock drift
+    private void play(byte[] pcm, int samples) {
+        int adjust = drift_compensator.adjust(samples);
+        if (adjust != 0) {
+            AudioDriftCompensator.stretch(pcm, samples, output_stretched, samples + adjust);
+            pcm = output_stretched;
+            samples += adjust;
+        }
+        int written = player.write(pcm, 0, samples * 2, AudioTrack.WRITE_BLOCKING);
+        if (written > 0)
+            output_frames_written += written / 2;
+    }
+
+    // Grows the player's buffer by a burst whenever it ran dry while there was audio to play, so it
+    // settles on the smallest size that plays without glitches. Running dry while the jitter buffer is
+    // refilling (or the other end is quiet) doesn't count. Decoder thread only.
+    private void tuneOutput() {
+        if (!jitter_buffer.isPlaying())
+            output_idle = true;
+        long now = System.nanoTime();
+        if (now - output_check_last < output_check_interval)
+            return;
+        output_check_last = now;
+
+        int underruns = player.getUnderrunCount();
+        if (underruns > output_underruns_last && !output_idle) {
+            output_underruns += underruns - output_underruns_last;
+            int size = player.getBufferSizeInFrames();
+            if (low_latency && size < player.getBufferCapacityInFrames()) {
+                size = player.setBufferSizeInFrames(size + output_burst);
+                Log.d(TAG, "Output ran dry, buffer now " + size + " frames");
+            }
+        }
+        output_underruns_last = underruns;
+        output_idle = !jitter_buffer.isPlaying();
+
+        OutputStatsListener listener = output_stats_listener;
+        if (listener == null || now - output_report_last < output_report_interval)
+            return;
+        output_report_last = now;
+        listener.onOutputStats(outputLatency(), player.getBufferSizeInFrames() / samples_per_ms, output_underruns, drift_compensator.getDrift());
+    }
+
+    // When what gets written next will come out of the speaker, in microseconds (System.nanoTime() /
+    // 1000). 0 if the player can't tell yet.
+    private long outputPlayout() {
+        if (!player.getTimestamp(output_timestamp))
+            return 0;
+        return output_timestamp.nanoTime / 1000 + (output_frames_written - output_timestamp.framePosition) * 1000 / samples_per_ms;
+    }
+
+    // In milliseconds, from what was last written to it coming out of the speaker
+    private int outputLatency() {
+        long playout = outputPlayout();
+        if (playout == 0)
+            return player.getBufferSizeInFrames() / samples_per_ms;
+        return (int) Math.max(0, (playout - System.nanoTime() / 1000) / 1000);
+    }
+
+    // Lets the other end know how much of its audio gets lost, so it can start sending copies of frames
+    private void reportLoss() {
+        long now = System.nanoTime();
+        if (now - loss_report_last < loss_report_interval)
+            return;
+        long received = jitter_buffer.getReceivedFrames() - loss_received_last;
+        long lost = Math.max(0, jitter_buffer.getLostFrames() - loss_lost_last);
+        loss_report_last = now;
+        loss_received_last += received;
+        loss_lost_last = jitter_buffer.getLostFrames();
+        if (pipe_out == null || received + lost == 0)
+            return;
+        pipe_out.send(Connection.DATA_AUDIO_LOSS, new byte[] {(byte) (lost * 100 / (received + lost))});
+    }
+
+    public void setOutgoingMessagePipe(ConnectionPipe pipe) {
         this.pipe_out = pipe;
     }
 
+    // Percentage of our audio the other end says it's losing. Can be called from any thread.
+    public void setRemoteLoss(int percent) {
+        loss_remote = percent;
+    }
+
+    // Can be called from any thread. Never goes above the bitrate the handler was created with. Unless
+    // set by hand, frame duration and frames per message follow it.
+    public void setTargetBitrate(int bitrate) {
+        bitrate_target = Math.max(bitrate_min, Math.min(bitrate_max, bitrate));
+        if (!packetization_adaptive)
+            return;
+        for (int[] step : packetization_ladder) {
+            if (bitrate_target >= step[0]) {
+                if (packetization[0] != step[1] || packetization[1] != step[2])
+                    packetization = new int[] {step[1], step[2]};
+                return;
+            }
+        }
+    }
+
+    // Fixes frame duration (10, 20, 40 or 60 ms) and frames per message, up to 120ms per message. Can be
+    // called from any thread, and takes effect from the next message.
+    public void setPacketization(int frame_duration, int frames_per_message) {
+        if (frame_duration != 10 && frame_duration != 20 && frame_duration != 40 && frame_duration != 60)
+            throw new IllegalArgumentException("Frame duration must be 10, 20, 40 or 60 ms");
+        if (frames_per_message < 1 || frame_duration * frames_per_message > message_duration_max)
+            throw new IllegalArgumentException("Messages can hold 1 to " + message_duration_max + " ms of audio");
+        packetization_adaptive = false;
+        packetization = new int[] {frame_duration, frames_per_message};
+    }
+
+    // Goes back to picking frame duration and frames per message by the target bitrate
+    public void setPacketizationAdaptive() {
+        packetization_adaptive = true;
+        setTargetBitrate(bitrate_target);
+    }
+
     public ConnectionMessagePipe getIncomingMessagePipe() {
         return pipe_in;
     }
+
+    // Can be called from any thread
+    public void setOutputStatsListener(OutputStatsListener listener) {
+        output_stats_listener = listener;
+    }
+
+    // Where playout times of incoming audio get reported, for video to follow, and where it finds out
+    // how much to hold audio back when video can't keep up
+    public void setLipSync(LipSync lip_sync) {
+        this.lip_sync = lip_sync;
+    }
+
+    // Where decoding and playback delays of incoming audio get recorded
+    public void setLatencyStats(LatencyStats latency_stats) {
+        this.latency_stats = latency_stats;
+    }
+
+    // Depth, target delay, late drops and concealment counts of incoming audio
+    public AudioJitterBuffer getJitterBuffer() {
+        return jitter_buffer;
+    }
 }
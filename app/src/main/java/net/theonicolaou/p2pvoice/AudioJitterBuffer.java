@@ -0,0 +1,270 @@
+package net.theonicolaou.p2pvoice;
+
+// Puts incoming audio packets back in order by sequence number and holds them back by a target delay,
+// which follows the measured inter-arrival jitter (same estimator as RFC 3550). Running dry right after
+// a frame flagged as DTX means the sender went quiet on purpose, so playback stops and buffers up again
+// instead of concealing. Messages can hold any amount of audio, the delay is kept in messages of the
+// current duration. On top of what the jitter needs, audio can be held back further to play along with
+// video that lags (see LipSync): when that goes up, playback gets pushed back by concealing a frame
+// every few without moving on, the same as an underrun does, and when it goes down the extra frames
+// get discarded like any other excess. Everything except the stat getters must be called from the
+// decoder thread.
+public class AudioJitterBuffer {
+    private static final int slot_count = 64;           // must be a power of 2
+    private static final int target_min = 2;            // in frames
+    private static final long target_delay_max = 200_000;  // in microseconds
+    private static final int conceal_max = 10;          // consecutive underruns before rebuffering
+    private static final int discard_headroom = 3;      // in frames above the target
+    private static final int discard_interval = 4;      // drop at most every 4th frame when too deep
+    private static final int restart_window = 1000;     // further back than this means the sender restarted
+
+    private long message_duration;  // in microseconds, of the messages coming in
+    private final ConnectionMessage[] slots = new ConnectionMessage[slot_count];
+    private boolean synced = false, playing = false, discard = false, dtx = false;
+    private int sequence_next, sequence_end;   // next frame to play, and one past the newest frame
+    private boolean transit_valid = false;
+    private long transit_last;
+    private double jitter = 0;          // in microseconds
+    private int target = target_min;    // in frames
+    private int target_jitter = target_min, target_extra = 0;   // in frames, the two parts of the target
+    private int stretch_pending = 0;    // in frames, still to push playback back by
+    private int conceal_run = 0, discard_count = 0, stretch_count = 0;
+
+    private volatile int stat_depth = 0, stat_target = target_min;
+    private volatile long stat_jitter = 0, stat_late = 0, stat_concealed = 0, stat_discarded = 0;
+    private volatile long stat_received = 0, stat_lost = 0, stat_recovered = 0;
+
+    AudioJitterBuffer(long message_duration) {
+        this.message_duration = message_duration;
+    }
+
+    // For when the sender changes how much audio it puts in each message. In microseconds.
+    public void setMessageDuration(long message_duration) {
+        this.message_duration = message_duration;
+    }
+
+    // How much longer than the jitter needs to hold audio back, in microseconds
+    public void setExtraDelay(long delay) {
+        int extra = (int) ((delay + message_duration / 2) / message_duration);
+        if (extra == target_extra)
+            return;
+        // Buffering up before playing starts gets there on its own
+        if (playing && extra > target_extra)
+            stretch_pending += extra - target_extra;
+        else if (extra < target_extra)
+            stretch_pending = Math.max(0, stretch_pending - (target_extra - extra));
+        target_extra = extra;
+        updateTarget();
+    }
+
+    // Takes ownership of the message
+    public void put(ConnectionMessage message) {
+        int sequence = message.sequence;
+        if (!synced) {
+            sequence_next = sequence_end = sequence;
+            synced = true;
+        }
+
+        int offset = sequence - sequence_next;
+        if (offset < 0 && offset > -restart_window) {
+            // Already played or concealed
+            stat_late++;
+            message.recycle();
+            return;
+        } else if (offset < 0 || offset >= slot_count) {
+            // Sender restarted, or we lost a lot more than we can hold
+            if (offset >= slot_count && offset < restart_window)
+                stat_lost += sequence - sequence_end;
+            resync(sequence);
+        }
+
+        long arrival = message.arrival != 0 ? message.arrival : System.nanoTime() / 1000;
+        updateJitter(sequence, message.timestamp, arrival);
+
+        int index = sequence & (slot_count - 1);
+        if (slots[index] != null) {
+            // Every slot maps to a single sequence number within the window, so this is a duplicate
+            message.recycle();
+            return;
+        }
+        slots[index] = message;
+        stat_received++;
+        if (sequence - sequence_end >= 0) {
+            // Anything skipped over is lost, unless it still shows up
+            stat_lost += sequence - sequence_end;
+            sequence_end = sequence + 1;
+        } else {
+            stat_lost--;
+        }
+        stat_depth = sequence_end - sequence_next;
+    }
+
+    // For a copy of a frame that came along with a later one. Only used if the frame itself is missing
+    // and it's not too late for it. Takes ownership of the message.
+    public void putRecovered(ConnectionMessage message) {
+        int offset = message.sequence - sequence_next;
+        int index = message.sequence & (slot_count - 1);
+        if (!synced || offset < 0 || message.sequence - sequence_end >= 0 || slots[index] != null) {
+            message.recycle();
+            return;
+        }
+        slots[index] = message;
+        stat_recovered++;
+    }
+
+    // Returns the frame to play next. Returns null if there's nothing to play yet (see isPlaying()), or
+    // if the frame is missing and has to be concealed.
+    public ConnectionMessage next() {
+        discard = false;
+        int depth = sequence_end - sequence_next;
+        if (!playing) {
+            if (!synced || depth < target)
+                return null;
+            playing = true;
+            conceal_run = 0;
+            stretch_pending = 0;
+        }
+
+        if (depth <= 0) {
+            // Underrun. Conceal without moving forward, which pushes playback back by one frame.
+            if (dtx || ++conceal_run > conceal_max) {
+                // Nothing is coming in, start over when it does
+                playing = false;
+                synced = false;
+                transit_valid = false;
+                dtx = false;
+                return null;
+            }
+            stat_concealed++;
+            return null;
+        }
+
+        if (stretch_pending > 0 && ++stretch_count % discard_interval == 0) {
+            // Conceal without moving forward, to hold audio back by another frame
+            stretch_pending--;
+            stat_concealed++;
+            return null;
+        }
+
+        int index = sequence_next & (slot_count - 1);
+        ConnectionMessage message = slots[index];
+        slots[index] = null;
+        sequence_next++;
+        stat_depth = depth - 1;
+        if (message == null) {
+            // Lost or still on its way, either way it's too late for it now
+            stat_concealed++;
+            dtx = false;
+            return null;
+        }
+        conceal_run = 0;
+        dtx = (message.flags & ConnectionMessage.FLAG_DTX) != 0;
+
+        // Shrink the delay when we're holding a lot more than we need
+        if (depth - 1 > target + discard_headroom) {
+            if (++discard_count % discard_interval == 0) {
+                discard = true;
+                stat_discarded++;
+            }
+        } else {
+            discard_count = 0;
+        }
+        return message;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    // Whether the frame returned by the last next() should be decoded but not played
+    public boolean shouldDiscard() {
+        return discard;
+    }
+
+    public void clear() {
+        for (int i = 0; i < slot_count; i++) {
+            if (slots[i] != null) {
+                slots[i].recycle();
+                slots[i] = null;
+            }
+        }
+        synced = playing = discard = dtx = false;
+        transit_valid = false;
+        stat_depth = 0;
+    }
+
+    private void resync(int sequence) {
+        for (int i = 0; i < slot_count; i++) {
+            if (slots[i] != null) {
+                slots[i].recycle();
+                slots[i] = null;
+            }
+        }
+        sequence_next = sequence_end = sequence;
+        playing = false;
+        transit_valid = false;
+    }
+
+    private void updateJitter(int sequence, long timestamp, long arrival) {
+        // Capture times stay right when the message duration changes, sequence numbers don't
+        long transit = arrival - (timestamp != 0 ? timestamp : sequence * message_duration);
+        if (transit_valid) {
+            long d = Math.abs(transit - transit_last);
+            jitter += (d - jitter) / 16;
+        }
+        transit_last = transit;
+        transit_valid = true;
+
+        int target = 1 + (int) Math.ceil(3 * jitter / message_duration);
+        int target_max = Math.max(target_min, (int) (target_delay_max / message_duration));
+        target_jitter = Math.max(target_min, Math.min(target_max, target));
+        stat_jitter = (long) jitter;
+        updateTarget();
+    }
+
+    private void updateTarget() {
+        target = Math.min(slot_count / 2, target_jitter + target_extra);
+        stat_target = target;
+    }
+
+    // In milliseconds
+    public int getDepth() {
+        return (int) (stat_depth * message_duration / 1000);
+    }
+
+    // In milliseconds
+    public int getTargetDelay() {
+        return (int) (stat_target * message_duration / 1000);
+    }
+
+    // In microseconds
+    public long getJitter() {
+        return stat_jitter;
+    }
+
+    public long getLateDrops() {
+        return stat_late;
+    }
+
+    public long getConcealedFrames() {
+        return stat_concealed;
+    }
+
+    public long getDiscardedFrames() {
+        return stat_discarded;
+    }
+
+    public long getReceivedFrames() {
+        return stat_received;
+    }
+
+    // Frames that never arrived, as far as can be told from the sequence numbers
+    public long getLostFrames() {
+        return stat_lost;
+    }
+
+    // Missing frames filled in from the copies carried by later ones
+    public long getRecoveredFrames() {
+        return stat_recovered;
+    }
+}
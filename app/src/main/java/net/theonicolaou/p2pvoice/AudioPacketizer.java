@@ -0,0 +1,155 @@
+package net.theonicolaou.p2pvoice;
+
+import java.nio.ByteBuffer;
+
+// Wire format of audio messages. Each one carries one or more Opus frames: frame count (1 byte), sizes of
+// all but the last frame (2 bytes each), then the frames themselves. With FLAG_REDUNDANT, that comes
+// after its own size (2 bytes) and is followed by a copy of the previous message's frames, in the same
+// format. Messages are packed straight into pooled buffers and the previous one is kept in a reused
+// array, so once warmed up nothing here allocates. One packetizer per sending thread, the parsing
+// helpers can be used from anywhere.
+public class AudioPacketizer {
+    public static final int frames_max = 12;            // 120ms of 10ms frames, as much as Opus allows
+    public static final int opus_packet_size_max = 1275;    // in bytes
+    private static final int samples_per_ms = 48;
+    private static final int[] silk_frame_samples = {480, 960, 1920, 2880};
+    private static final int payload_size_max = 1 + 2 * (frames_max - 1) + frames_max * opus_packet_size_max;
+
+    private final byte[][] frames = new byte[frames_max][];
+    private int frame_count = 0;
+    private final byte[] previous = new byte[payload_size_max];
+    private int previous_length = 0;    // 0 when there's none
+
+    // Adds an encoded frame to the next message. The array has to stay untouched until then.
+    public void add(byte[] frame) {
+        if (frame_count == frames_max || frame.length > opus_packet_size_max)
+            throw new IllegalStateException("Frame doesn't fit in the message");
+        frames[frame_count++] = frame;
+    }
+
+    public int getFrameCount() {
+        return frame_count;
+    }
+
+    // Packs the frames added since the last message. With redundant, a copy of the previous message goes
+    // along if there is one. last means the sender goes quiet after this (FLAG_DTX), so whatever comes
+    // next won't carry a copy of it.
+    public ConnectionMessage build(boolean redundant, boolean last) {
+        int size = 1 + 2 * (frame_count - 1);
+        for (int i = 0; i < frame_count; i++)
+            size += frames[i].length;
+        boolean with_previous = redundant && previous_length > 0;
+
+        ConnectionMessage message = ConnectionMessage.obtain(Connection.DATA_AUDIO, with_previous ? 2 + size + previous_length : size);
+        ByteBuffer buffer = message.buffer();
+        if (with_previous) {
+            buffer.putShort((short) size);
+            message.flags = ConnectionMessage.FLAG_REDUNDANT;
+        }
+        int start = buffer.position();
+        buffer.put((byte) frame_count);
+        for (int i = 0; i < frame_count - 1; i++)
+            buffer.putShort((short) frames[i].length);
+        for (int i = 0; i < frame_count; i++) {
+            buffer.put(frames[i]);
+            frames[i] = null;
+        }
+        frame_count = 0;
+        if (with_previous)
+            buffer.put(previous, 0, previous_length);
+
+        if (last) {
+            message.flags |= ConnectionMessage.FLAG_DTX;
+            previous_length = 0;
+        } else {
+            System.arraycopy(message.data, start, previous, 0, size);
+            previous_length = size;
+        }
+        return message;
+    }
+
+    // Samples (at 48kHz) in an Opus packet, going by its TOC byte (RFC 6716, section 3.1). 0 if it's
+    // broken.
+    public static int opusSamples(byte[] data, int offset, int size) {
+        if (size < 1)
+            return 0;
+        int toc = data[offset] & 0xff;
+        int config = toc >> 3, samples;
+        if (config < 12)
+            samples = silk_frame_samples[config & 3];
+        else if (config < 16)
+            samples = (config & 1) == 0 ? 480 : 960;    // Hybrid
+        else
+            samples = 120 << (config & 3);              // CELT
+        switch (toc & 3) {
+            case 0:
+                return samples;
+            case 1:
+            case 2:
+                return samples * 2;
+            default:
+                return size < 2 ? 0 : samples * (data[offset + 1] & 0x3f);
+        }
+    }
+
+    // Finds where each frame of the message is. Returns the frame count, or 0 if the message is broken.
+    public static int unpackFrames(ConnectionMessage message, int[] offsets, int[] sizes) {
+        int count = message.length > 0 ? message.data[0] & 0xff : 0;
+        int offset = 1 + 2 * (count - 1);
+        if (count == 0 || count > offsets.length || offset > message.length)
+            return 0;
+        ByteBuffer buffer = message.buffer();
+        for (int i = 0; i < count; i++) {
+            int size = i < count - 1 ? buffer.getShort(1 + 2 * i) & 0xffff : message.length - offset;
+            if (offset + size > message.length || opusSamples(message.data, offset, size) == 0)
+                return 0;
+            offsets[i] = offset;
+            sizes[i] = size;
+            offset += size;
+        }
+        return count;
+    }
+
+    // How long the audio in the message lasts, in microseconds. 0 if it's broken.
+    public static long messageDuration(ConnectionMessage message) {
+        int count = message.length > 0 ? message.data[0] & 0xff : 0;
+        int offset = 1 + 2 * (count - 1);
+        if (count == 0 || count > frames_max || offset > message.length)
+            return 0;
+        ByteBuffer buffer = message.buffer();
+        long samples = 0;
+        for (int i = 0; i < count; i++) {
+            int size = i < count - 1 ? buffer.getShort(1 + 2 * i) & 0xffff : message.length - offset;
+            if (offset + size > message.length)
+                return 0;
+            samples += opusSamples(message.data, offset, size);
+            offset += size;
+        }
+        return samples * 1000 / samples_per_ms;
+    }
+
+    // Leaves the primary message in the message, and returns the copy of the previous message it carried
+    // (or null if there's none)
+    public static ConnectionMessage unpackRedundant(ConnectionMessage message) {
+        message.flags &= ~ConnectionMessage.FLAG_REDUNDANT;
+        int size = message.length >= 2 ? message.buffer().getShort(0) & 0xffff : -1;
+        if (size < 0 || 2 + size > message.length) {
+            // Broken, have it concealed instead
+            message.length = 0;
+            return null;
+        }
+
+        ConnectionMessage recovered = null;
+        int size_previous = message.length - 2 - size;
+        if (size_previous > 0) {
+            recovered = ConnectionMessage.obtain(Connection.DATA_AUDIO, size_previous);
+            System.arraycopy(message.data, 2 + size, recovered.data, 0, size_previous);
+            recovered.sequence = message.sequence - 1;
+            recovered.timestamp = message.timestamp - messageDuration(recovered);
+            recovered.arrival = message.arrival;
+        }
+        System.arraycopy(message.data, 2, message.data, 0, size);
+        message.length = size;
+        return recovered;
+    }
+}
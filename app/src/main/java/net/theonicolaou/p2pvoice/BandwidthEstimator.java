@@ -0,0 +1,195 @@
+package net.theonicolaou.p2pvoice;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Send-side bandwidth estimate for a connection. Fed by its ConnectionScheduler with what the sending
+// thread actually drains and how long it sat in the queue, and with RTTs from pings, which also catch
+// data piling up in the socket's buffers. Every interval the target bitrate backs off multiplicatively
+// when the queueing delay is high or rising, creeps up additively when it's low, and probes faster
+// after it's been low for a while. The RTT it compares against is the lowest one of the last few
+// seconds, which also gives the clock offset to the other end, so both follow the route when it changes.
+public class BandwidthEstimator {
+    public interface Listener {
+        // In bits/s, called on the connection's sending thread
+        void onTargetBitrate(int bitrate);
+    }
+
+    private static final String TAG = "BandwidthEstimator";
+    private static final long interval = 500_000_000L;          // in nanoseconds
+    private static final long ping_interval = 1000_000_000L;    // in nanoseconds
+    private static final int bitrate_min = 150_000, bitrate_max = 8_000_000, bitrate_start = 1_000_000;
+    private static final int increase_step = 50_000;            // per interval
+    private static final double increase_probe = 0.08, decrease_factor = 0.85;
+    private static final int probe_after = 4;                   // calm intervals before probing
+    private static final long delay_low = 30_000, delay_high = 100_000;    // in microseconds
+    private static final int rtt_window = 10;                   // in seconds, how long a low RTT counts for
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    // Only touched by the sending thread, while holding the scheduler's lock
+    private long interval_start = 0, ping_last = 0;
+    private long interval_bytes = 0, interval_delay_max = 0, delay_last = 0;
+    private boolean interval_backlogged = true, interval_expired = false;
+    private int calm_intervals = 0;
+    private int target = bitrate_start;
+    private volatile int target_published = bitrate_start;
+
+    private volatile long rtt_last = 0, rtt_min = Long.MAX_VALUE;   // in microseconds
+    private volatile long clock_offset = 0;
+    private volatile boolean clock_offset_valid = false;
+    // Lowest RTT seen in each of the last rtt_window seconds, and the clock offset measured along with it
+    private final Object rtt_lock = new Object();
+    private final long[] window_second = new long[rtt_window];
+    private final long[] window_rtt = new long[rtt_window];
+    private final long[] window_offset = new long[rtt_window];
+    private final boolean[] window_offset_valid = new boolean[rtt_window];
+
+    BandwidthEstimator() {
+        Arrays.fill(window_second, -1);
+    }
+
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getTargetBitrate() {
+        return target_published;
+    }
+
+    // In microseconds, 0 until the first pong
+    public long getRtt() {
+        return rtt_last;
+    }
+
+    // A message of the given size is about to be sent, after waiting in the queue for queue_delay
+    // nanoseconds. backlogged: whether more messages were waiting behind it.
+    void onDequeue(int bytes, long queue_delay, boolean backlogged, long now) {
+        if (interval_start == 0)
+            interval_start = now;
+        interval_bytes += bytes;
+        interval_delay_max = Math.max(interval_delay_max, queue_delay / 1000);
+        interval_backlogged &= backlogged;
+        if (now - interval_start >= interval)
+            update(now);
+    }
+
+    // A frame sat in the queue for so long that it was dropped
+    void onExpired() {
+        interval_expired = true;
+    }
+
+    // Whether it's time to send another ping. Assumes one gets sent if it returns true.
+    boolean pingDue(long now) {
+        if (now - ping_last < ping_interval)
+            return false;
+        ping_last = now;
+        return true;
+    }
+
+    // In microseconds, the other end's clock minus ours. Only valid after the first pong.
+    public long getClockOffset() {
+        return clock_offset;
+    }
+
+    public boolean isClockOffsetValid() {
+        return clock_offset_valid;
+    }
+
+    // Called by the incoming thread with the timestamp echoed back in a pong, and the other end's clock
+    // when it sent the pong (from the pong's own timestamp)
+    void onPong(long sent, long remote) {
+        long now = System.nanoTime() / 1000;
+        long rtt = now - sent;
+        if (rtt < 0)
+            return;
+        synchronized (rtt_lock) {
+            rtt_last = rtt;
+            long second = now / 1_000_000;
+            int slot = (int) (second % rtt_window);
+            if (window_second[slot] != second || rtt <= window_rtt[slot]) {
+                window_second[slot] = second;
+                window_rtt[slot] = rtt;
+                // The pong went out about halfway through the round trip, and the quicker the round trip
+                // the less room there is for that to be wrong
+                window_offset[slot] = remote - (sent + rtt / 2);
+                window_offset_valid[slot] = remote != 0;
+            }
+
+            int best = slot;
+            for (int i = 0; i < rtt_window; i++) {
+                if (window_second[i] >= 0 && second - window_second[i] < rtt_window && window_rtt[i] < window_rtt[best])
+                    best = i;
+            }
+            rtt_min = window_rtt[best];
+            if (window_offset_valid[best]) {
+                clock_offset = window_offset[best];
+                clock_offset_valid = true;
+            }
+        }
+    }
+
+    // Forgets the RTTs and clock offset measured so far, for a new connection that may well take another
+    // route than the last one
+    void resetRtt() {
+        synchronized (rtt_lock) {
+            Arrays.fill(window_second, -1);
+            rtt_last = 0;
+            rtt_min = Long.MAX_VALUE;
+            clock_offset_valid = false;
+        }
+    }
+
+    private void update(long now) {
+        long elapsed = now - interval_start;
+        int rate = (int) Math.min(Integer.MAX_VALUE, interval_bytes * 8 * 1_000_000_000L / elapsed);
+        // Whatever RTT went up by since the best one so far is data waiting in buffers further down
+        long rtt = rtt_last, rtt_min = this.rtt_min;
+        long rtt_excess = rtt == 0 || rtt_min == Long.MAX_VALUE ? 0 : Math.max(0, rtt - rtt_min);
+        long delay = interval_delay_max + rtt_excess;
+
+        if (interval_expired || delay > delay_high || (delay > delay_low && delay > delay_last)) {
+            // When the queue never ran dry, what got through is what the link can take
+            int base = interval_backlogged ? Math.min(target, rate) : target;
+            target = Math.max(bitrate_min, (int) (base * decrease_factor));
+            calm_intervals = 0;
+        } else if (delay < delay_low) {
+            // Don't keep raising the target while the senders aren't even using it
+            if (rate >= target / 2) {
+                calm_intervals++;
+                int increase = calm_intervals > probe_after ? (int) (target * increase_probe) : increase_step;
+                target = Math.min(bitrate_max, target + Math.max(increase, increase_step));
+            }
+        } else {
+            calm_intervals = 0;
+        }
+
+        delay_last = delay;
+        interval_start = now;
+        interval_bytes = 0;
+        interval_delay_max = 0;
+        interval_backlogged = true;
+        interval_expired = false;
+    }
+
+    // Lets the listeners know about a new target, if any. Must be called without holding the
+    // scheduler's lock.
+    void publish() {
+        int target = this.target;
+        if (target == target_published)
+            return;
+        target_published = target;
+        Log.d(TAG, "Target bitrate " + target / 1000 + " kbit/s, rtt=" + rtt_last / 1000 + "ms");
+        synchronized (this) {
+            for (Listener listener : listeners)
+                listener.onTargetBitrate(target);
+        }
+    }
+}
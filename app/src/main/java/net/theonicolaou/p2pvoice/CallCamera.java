@@ -197,7 +197,12 @@ public class CallCamera {
             return;
 
         Log.d(TAG, "Stopping");
+        closeSession();
+        stop_requested = false;
+        started = false;
+    }
 
+    private void closeSession() {
         if (camera_session != null && camera_current != null) {
             try {
                 camera_session.stopRepeating();
@@ -205,9 +210,16 @@ public class CallCamera {
             } catch (CameraAccessException ignored) {}
         }
         camera_session = null;
+    }
 
-        stop_requested = false;
+    // For when the encoder's input surface changed size, which a session only picks up when it's created
+    public void restartSession() {
+        if (!started)
+            return;
+        Log.d(TAG, "Restarting capture session");
+        closeSession();
         started = false;
+        startIfReady();
     }
 
     public void start() {
@@ -0,0 +1,215 @@
+package net.theonicolaou.p2pvoice;
+
+import android.media.MediaFormat;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// What one end can do, sent to the other one as soon as the call connects: the video codecs it can
+// both encode and decode, the largest picture and frame rate it wants to send, and how much it wants
+// to spend on audio. Both ends run negotiate() on the same pair, so they agree on the codec without
+// another round trip.
+//
+// Message format, all big endian: version (1 byte), width (2 bytes), height (2 bytes), fps (1 byte),
+// audio bitrate (4 bytes), video codec count (1 byte), then for each codec: mime length (1 byte), mime,
+// flags (1 byte), encoder profile count (1 byte) and that many profile and level pairs (4 bytes each),
+// then the same for the decoder. Later versions can only add to the end.
+public class CallCapabilities {
+    public static class Video {
+        public static final int FLAG_HARDWARE_ENCODER = 1;
+        public static final int FLAG_HARDWARE_DECODER = 2;
+
+        public final String mime;
+        public final int flags;
+        // Pairs of profile and the highest level it's supported at
+        public final int[] encoder_profile_levels, decoder_profile_levels;
+
+        Video(String mime, int flags, int[] encoder_profile_levels, int[] decoder_profile_levels) {
+            this.mime = mime;
+            this.flags = flags;
+            this.encoder_profile_levels = encoder_profile_levels;
+            this.decoder_profile_levels = decoder_profile_levels;
+        }
+
+        private boolean hardware() {
+            return (flags & (FLAG_HARDWARE_ENCODER | FLAG_HARDWARE_DECODER)) == (FLAG_HARDWARE_ENCODER | FLAG_HARDWARE_DECODER);
+        }
+    }
+
+    // What the call ends up with, from this end's point of view
+    public static class Session {
+        public final String mime;       // null for no video
+        public final int width, height, fps, audio_bitrate;
+        public final int[] profile_level;   // for this end's encoder, {profile, level}, or null for its default
+
+        Session(String mime, int width, int height, int fps, int audio_bitrate, int[] profile_level) {
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.audio_bitrate = audio_bitrate;
+            this.profile_level = profile_level;
+        }
+
+        // Whether the video codecs set up for one can be kept for the other
+        public boolean sameVideo(Session other) {
+            return other != null && (mime == null ? other.mime == null : mime.equals(other.mime)) &&
+                    width == other.width && height == other.height && fps == other.fps &&
+                    Arrays.equals(profile_level, other.profile_level);
+        }
+
+        @Override
+        public String toString() {
+            return (mime != null ? mime + " " + width + "x" + height + "@" + fps : "no video") + ", audio " + audio_bitrate / 1000 + "kbit/s";
+        }
+    }
+
+    private static final int version = 1;
+    private static final int codecs_max = 255, profile_levels_max = 255;
+    // Most bandwidth for the picture first
+    private static final String[] mime_efficiency = {
+            MediaFormat.MIMETYPE_VIDEO_AV1,
+            MediaFormat.MIMETYPE_VIDEO_HEVC,
+            MediaFormat.MIMETYPE_VIDEO_VP9,
+            MediaFormat.MIMETYPE_VIDEO_AVC,
+            MediaFormat.MIMETYPE_VIDEO_VP8,
+    };
+
+    public final int width, height, fps, audio_bitrate;
+    public final List<Video> video;
+
+    CallCapabilities(int width, int height, int fps, int audio_bitrate, List<Video> video) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.audio_bitrate = audio_bitrate;
+        this.video = video;
+    }
+
+    // This device's, for sending up to width x height at fps
+    public static CallCapabilities local(int width, int height, int fps, int audio_bitrate) {
+        List<Video> video = new ArrayList<>();
+        for (String mime : VideoCodecs.getMimes(width, height, fps)) {
+            VideoCodecs.Codec encoder = VideoCodecs.findEncoder(mime, width, height, fps);
+            VideoCodecs.Codec decoder = VideoCodecs.findDecoder(mime, width, height, fps);
+            int flags = (encoder.hardware ? Video.FLAG_HARDWARE_ENCODER : 0) | (decoder.hardware ? Video.FLAG_HARDWARE_DECODER : 0);
+            video.add(new Video(mime, flags, encoder.profile_levels, decoder.profile_levels));
+        }
+        return new CallCapabilities(width, height, fps, audio_bitrate, video);
+    }
+
+    public byte[] toBytes() {
+        int size = 11;
+        for (Video codec : video)
+            size += 4 + codec.mime.length() + 4 * (codec.encoder_profile_levels.length + codec.decoder_profile_levels.length);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) version);
+        buffer.putShort((short) width);
+        buffer.putShort((short) height);
+        buffer.put((byte) fps);
+        buffer.putInt(audio_bitrate);
+        buffer.put((byte) Math.min(video.size(), codecs_max));
+        for (int i = 0; i < Math.min(video.size(), codecs_max); i++) {
+            Video codec = video.get(i);
+            byte[] mime = codec.mime.getBytes(StandardCharsets.US_ASCII);
+            buffer.put((byte) mime.length);
+            buffer.put(mime);
+            buffer.put((byte) codec.flags);
+            putProfileLevels(buffer, codec.encoder_profile_levels);
+            putProfileLevels(buffer, codec.decoder_profile_levels);
+        }
+        return buffer.array();
+    }
+
+    private static void putProfileLevels(ByteBuffer buffer, int[] profile_levels) {
+        int count = Math.min(profile_levels.length / 2, profile_levels_max);
+        buffer.put((byte) count);
+        for (int i = 0; i < count * 2; i++)
+            buffer.putInt(profile_levels[i]);
+    }
+
+    // Returns null if the message is broken
+    public static CallCapabilities parse(byte[] data, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        try {
+            if ((buffer.get() & 0xff) < version)
+                return null;
+            int width = buffer.getShort() & 0xffff;
+            int height = buffer.getShort() & 0xffff;
+            int fps = buffer.get() & 0xff;
+            int audio_bitrate = buffer.getInt();
+            int count = buffer.get() & 0xff;
+            List<Video> video = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] mime = new byte[buffer.get() & 0xff];
+                buffer.get(mime);
+                int flags = buffer.get() & 0xff;
+                int[] encoder_profile_levels = getProfileLevels(buffer);
+                int[] decoder_profile_levels = getProfileLevels(buffer);
+                video.add(new Video(new String(mime, StandardCharsets.US_ASCII), flags, encoder_profile_levels, decoder_profile_levels));
+            }
+            if (width == 0 || height == 0 || fps == 0 || audio_bitrate <= 0)
+                return null;
+            return new CallCapabilities(width, height, fps, audio_bitrate, video);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static int[] getProfileLevels(ByteBuffer buffer) {
+        int[] profile_levels = new int[(buffer.get() & 0xff) * 2];
+        for (int i = 0; i < profile_levels.length; i++)
+            profile_levels[i] = buffer.getInt();
+        return profile_levels;
+    }
+
+    // The codec both ends can encode and decode that needs the least bitrate for the picture, going for
+    // ones that run in hardware on both ends first, since software codecs rarely keep up with the call.
+    // Sizes, frame rate and audio bitrate are the lower of the two.
+    public static Session negotiate(CallCapabilities local, CallCapabilities remote) {
+        Video local_best = null, remote_best = null;
+        int best_score = Integer.MIN_VALUE;
+        for (Video local_codec : local.video) {
+            Video remote_codec = find(remote.video, local_codec.mime);
+            if (remote_codec == null)
+                continue;
+            int score = -efficiencyRank(local_codec.mime);
+            if (local_codec.hardware() && remote_codec.hardware())
+                score += mime_efficiency.length + 1;
+            // Ties have to go the same way on both ends, whatever order each one lists its codecs in
+            if (score > best_score || (score == best_score && local_codec.mime.compareTo(local_best.mime) < 0)) {
+                best_score = score;
+                local_best = local_codec;
+                remote_best = remote_codec;
+            }
+        }
+
+        int audio_bitrate = Math.min(local.audio_bitrate, remote.audio_bitrate);
+        if (local_best == null)
+            return new Session(null, 0, 0, 0, audio_bitrate, null);
+        boolean local_smaller = local.width * local.height <= remote.width * remote.height;
+        return new Session(local_best.mime,
+                local_smaller ? local.width : remote.width, local_smaller ? local.height : remote.height,
+                Math.min(local.fps, remote.fps), audio_bitrate,
+                VideoCodecs.pickProfileLevel(local_best.mime, local_best.encoder_profile_levels, remote_best.decoder_profile_levels));
+    }
+
+    private static Video find(List<Video> video, String mime) {
+        for (Video codec : video)
+            if (codec.mime.equals(mime))
+                return codec;
+        return null;
+    }
+
+    // Unknown ones go last, in whatever order both ends list them
+    private static int efficiencyRank(String mime) {
+        for (int i = 0; i < mime_efficiency.length; i++)
+            if (mime_efficiency[i].equals(mime))
+                return i;
+        return mime_efficiency.length;
+    }
+}
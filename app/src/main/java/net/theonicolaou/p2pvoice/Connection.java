@@ -1,12 +1,22 @@
 package net.theonicolaou.p2pvoice;
 
+import android.util.Log;
+
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public abstract class Connection {
+    private static final String TAG = "Connection";
     public static final int MSG_SIZE_MAX = 2 * 1024 * 1024;
-    protected static final int PIPE_OUT_CAPACITY = 130;
+    // Message header on stream connections: type (4 bytes), size (4 bytes), sequence number within the
+    // type's flow (4 bytes), timestamp in microseconds (8 bytes), flags (4 bytes), all big endian. The
+    // payload follows, and can be empty: messages like DATA_VIDEO_STOP are nothing but their type.
+    protected static final int MSG_HEADER_SIZE = 24;
+    // Width (2 bytes), height (2 bytes) and fps (1 byte), at the end of video frames with FLAG_FORMAT
+    protected static final int VIDEO_FORMAT_SIZE = 5;
 
     // Used to signal new connections
     public interface StatusListener {
@@ -16,6 +26,10 @@ public abstract class Connection {
         void onVideoStop();
         void onVideoStart(int degrees);
         void onEndCall();
+        void onKeyframeRequest();           // from the other end, or this one dropped video on the way out
+        void onAudioLoss(int percent);
+        void onCapabilities(byte[] data);   // the other end's, for CallCapabilities.parse()
+        void onVideoFormat(int width, int height, int fps); // of the video frame about to come in
     }
 
     public static class InvalidMessage extends IllegalArgumentException {}
@@ -28,10 +42,107 @@ public abstract class Connection {
     public static final int DATA_VIDEO_START_90 = 3;
     public static final int DATA_VIDEO_START_270 = 4;
     public static final int DATA_END_CALL = 5;
+    public static final int DATA_PING = 6;      // 8 byte timestamp in microseconds, echoed back as a pong
+    public static final int DATA_PONG = 7;
+    public static final int DATA_KEYFRAME_REQUEST = 8;
+    public static final int DATA_AUDIO_LOSS = 9;    // 1 byte, percentage of audio frames lost on the way here
+    public static final int DATA_CAPABILITIES = 10; // sent by both ends on connect, see CallCapabilities
+
+    // Types have to fit in the one byte the datagram header has for them (see ConnectionDatagram). One
+    // that doesn't on a stream means it's out of step, unlike a type that's only unknown to this version.
+    static boolean isValidType(int type) {
+        return type >= 0 && type <= Byte.MAX_VALUE;
+    }
 
     public abstract void start();
     public abstract void stop();
 
-    public abstract @NotNull ConnectionMessagePipe getOutgoingMessagePipe();
+    public abstract @NotNull ConnectionPipe getOutgoingMessagePipe();
     public abstract void setIncomingMessagePipe(int message_type, ConnectionMessagePipe pipe);
+    public abstract @NotNull BandwidthEstimator getBandwidthEstimator();
+    public abstract @NotNull LatencyStats getLatencyStats();
+
+    // Strips the picture format off the end of a video frame that carries one (see
+    // ConnectionMessage.FLAG_FORMAT) and tells the listener, before the frame goes on to the decoder. The
+    // decoder gets set up for the new size right before the first frame of it, whatever else is going on.
+    static void takeVideoFormat(ConnectionMessage message, StatusListener listener) {
+        if ((message.flags & ConnectionMessage.FLAG_FORMAT) == 0)
+            return;
+        message.flags &= ~ConnectionMessage.FLAG_FORMAT;
+        if (message.length < VIDEO_FORMAT_SIZE)
+            return;
+        ByteBuffer format = message.buffer();
+        message.length -= VIDEO_FORMAT_SIZE;
+        listener.onVideoFormat(format.getShort(message.length) & 0xffff, format.getShort(message.length + 2) & 0xffff,
+                message.data[message.length + 4] & 0xff);
+    }
+
+    // Hands a received message to whoever it's for, and takes care of the connection's own messages.
+    // Takes ownership of the message. Returns true when the other side ended the call.
+    static boolean dispatch(ConnectionMessage message, StatusListener listener, ConnectionMessagePipe pipe_in_video,
+                            ConnectionMessagePipe pipe_in_audio, ConnectionScheduler pipe_out) {
+        ConnectionPipe pipe_forward = null;
+        boolean end_call = false;
+        pipe_out.getLatencyStats().onReceived(message);
+        switch (message.type) {
+            case DATA_VIDEO:
+                takeVideoFormat(message, listener);
+                pipe_forward = pipe_in_video;
+                break;
+
+            case DATA_AUDIO:
+                pipe_forward = pipe_in_audio;
+                break;
+
+            case DATA_VIDEO_STOP:
+                listener.onVideoStop();
+                break;
+
+            case DATA_VIDEO_START_90:
+                listener.onVideoStart(90);
+                break;
+
+            case DATA_VIDEO_START_270:
+                listener.onVideoStart(270);
+                break;
+
+            case DATA_END_CALL:
+                end_call = true;
+                break;
+
+            case DATA_KEYFRAME_REQUEST:
+                listener.onKeyframeRequest();
+                break;
+
+            case DATA_AUDIO_LOSS:
+                if (message.length >= 1)
+                    listener.onAudioLoss(message.data[0]);
+                break;
+
+            case DATA_CAPABILITIES:
+                // Parsing them takes the platform's codec constants, which the connection stays clear of
+                listener.onCapabilities(Arrays.copyOf(message.data, message.length));
+                break;
+
+            case DATA_PING:
+                // Echo it right back
+                message.type = DATA_PONG;
+                message.timestamp = 0;
+                pipe_forward = pipe_out;
+                break;
+
+            case DATA_PONG:
+                if (message.length >= 8)
+                    pipe_out.getBandwidthEstimator().onPong(message.buffer().getLong(0), message.timestamp);
+                break;
+
+            default:
+                Log.w(TAG, "Ignoring message of type=" + message.type + " size=" + message.length);
+        }
+        if (pipe_forward != null)
+            pipe_forward.send(message);
+        else
+            message.recycle();
+        return end_call;
+    }
 }
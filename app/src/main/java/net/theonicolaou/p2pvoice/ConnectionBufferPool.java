@@ -0,0 +1,68 @@
+package net.theonicolaou.p2pvoice;
+
+import java.nio.ByteBuffer;
+
+// Size-classed pool of message buffers, so the media path doesn't allocate a new array per frame.
+// Buffers are heap ByteBuffers, so both the array and the ByteBuffer wrapping it get reused for channel
+// I/O. They're leased in power-of-two sizes from 256 bytes up to Connection.MSG_SIZE_MAX, and every
+// size class keeps a limited number of released buffers around (more of the small ones).
+public class ConnectionBufferPool {
+    private static final int class_min_shift = 8;
+    private static final int class_max_shift = 32 - Integer.numberOfLeadingZeros(Connection.MSG_SIZE_MAX - 1);
+    private static final int class_budget = 4 * 1024 * 1024;    // in bytes, per size class
+    private static final int class_count_min = 2, class_count_max = 32;
+
+    private static class SizeClass {
+        final int size;
+        final ByteBuffer[] free;
+        int free_count = 0;
+
+        SizeClass(int size) {
+            this.size = size;
+            free = new ByteBuffer[Math.max(class_count_min, Math.min(class_count_max, class_budget / size))];
+        }
+    }
+
+    private static final SizeClass[] classes = new SizeClass[class_max_shift - class_min_shift + 1];
+
+    static {
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new SizeClass(1 << (class_min_shift + i));
+    }
+
+    private static SizeClass classFor(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return classes[Math.max(shift, class_min_shift) - class_min_shift];
+    }
+
+    // Returns a buffer with a capacity of at least the given size, which may contain leftover data.
+    public static ByteBuffer lease(int size) {
+        if (size < 0 || size > Connection.MSG_SIZE_MAX)
+            throw new Connection.InvalidMessage();
+
+        SizeClass size_class = classFor(size);
+        synchronized (size_class) {
+            if (size_class.free_count > 0) {
+                ByteBuffer buffer = size_class.free[--size_class.free_count];
+                size_class.free[size_class.free_count] = null;
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(size_class.size);
+    }
+
+    // Gives a buffer from lease() back to the pool. It must not be used after this.
+    public static void release(ByteBuffer buffer) {
+        if (buffer.capacity() > Connection.MSG_SIZE_MAX)
+            return;
+        SizeClass size_class = classFor(buffer.capacity());
+        if (size_class.size != buffer.capacity())
+            return;     // Not one of ours
+
+        buffer.clear();
+        synchronized (size_class) {
+            if (size_class.free_count < size_class.free.length)
+                size_class.free[size_class.free_count++] = buffer;
+        }
+    }
+}
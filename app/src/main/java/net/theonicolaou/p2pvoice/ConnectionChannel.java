@@ -0,0 +1,342 @@
+package net.theonicolaou.p2pvoice;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Same protocol as ConnectionServer/ConnectionClient, but built on socket channels. Each message goes
+// out as a single gathering write (header + payload), and ConnectionFrameCodec reads payloads straight
+// into pooled buffers, together with the start of the next header when available. Those are heap
+// buffers, since opus, AudioTrack and MediaCodec all want arrays, so the channel still copies them
+// through a direct buffer of its own on the way in and out. What this saves is system calls, not copies.
+public class ConnectionChannel extends Connection {
+    private static final String TAG = "ConnectionChannel";
+    private static final int reconnection_delay = 1000;
+    private static final int connection_timeout = 5000;
+
+    private final InetSocketAddress address;
+    private final boolean is_server;
+    private boolean signal_shutdown = false;
+    private final StatusListener listener;
+    private final Handler main_thread;
+    private SocketChannel channel = null;
+    private volatile InetAddress remote_address = null;
+    private ServerSocketChannel channel_server = null;
+    private Thread thread;
+    private final ConnectionScheduler pipe_out;
+    private volatile ConnectionMessagePipe pipe_in_video = null, pipe_in_audio = null;
+    private boolean pipes_open = false;   // Whether the incoming pipes' senders are open, guarded by this
+
+    ConnectionChannel(@NotNull Context context, @NotNull StatusListener listener, String host, int port, boolean is_server) {
+        this(context, listener, host, port, is_server, true);
+    }
+
+    ConnectionChannel(@NotNull Context context, @NotNull StatusListener listener, String host, int port, boolean is_server,
+                      boolean ping) {
+        this.listener = listener;
+        this.is_server = is_server;
+        address = new InetSocketAddress(host, port);
+        main_thread = new Handler(context.getMainLooper());
+        pipe_out = new ConnectionScheduler(listener::onKeyframeRequest, ping);
+        pipe_out.openSender();
+    }
+
+    @Override
+    public @NotNull ConnectionPipe getOutgoingMessagePipe() {
+        return pipe_out;
+    }
+
+    @Override
+    public @NotNull BandwidthEstimator getBandwidthEstimator() {
+        return pipe_out.getBandwidthEstimator();
+    }
+
+    @Override
+    public @NotNull LatencyStats getLatencyStats() {
+        return pipe_out.getLatencyStats();
+    }
+
+    // Address of the other end while connected, null otherwise
+    public InetAddress getRemoteAddress() {
+        return remote_address;
+    }
+
+    private void threadIncoming() {
+        boolean signal_shutdown, end_call = false;
+
+        // Don't start immediately, so the activity gets the chance to fully load
+        synchronized (this) {
+            if (!this.signal_shutdown) {
+                try {
+                    wait(reconnection_delay);
+                } catch (InterruptedException ignored) {}
+            }
+            signal_shutdown = this.signal_shutdown;
+        }
+
+        // Initialize and bind server socket
+        ServerSocketChannel channel_server = null;
+        if (is_server) {
+            try {
+                channel_server = ServerSocketChannel.open();
+                channel_server.socket().bind(address, 1);
+                synchronized (this) {
+                    if (this.signal_shutdown) {
+                        Log.i(TAG, "Closing server before any clients were connected");
+                        channel_server.close();
+                        return;
+                    }
+                    this.channel_server = channel_server;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to bind server socket to " + address);
+                main_thread.post(() -> listener.onError(e));
+                return;
+            }
+        }
+
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+
+        while (!signal_shutdown && !end_call) {
+            SocketChannel channel = null;
+
+            // Try to connect
+            try {
+                if (is_server) {
+                    Log.i(TAG, "Listening for new connection on " + address);
+                    channel = channel_server.accept();
+                    Log.i(TAG, "Incoming connection from " + channel.socket().getInetAddress());
+                } else {
+                    Log.i(TAG, "Trying to connect to " + address);
+                    channel = SocketChannel.open();
+                    channel.socket().connect(address, connection_timeout);
+                    Log.i(TAG, "Connected to " + address);
+                }
+                // Every message is a single write, so there's nothing left for Nagle to merge
+                channel.socket().setTcpNoDelay(true);
+                synchronized (this) {
+                    if (this.signal_shutdown) {
+                        Log.i(TAG, "Closing connection before any I/O was done");
+                        channel.close();
+                        break;
+                    }
+                    this.channel = channel;
+                    remote_address = channel.socket().getInetAddress();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Connection with " + address + " failed: " + e.getMessage());
+                main_thread.post(() -> listener.onError(e));
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+                synchronized (this) {
+                    // Check if shutting down and pause before reconnecting
+                    if (!is_server && !this.signal_shutdown) {
+                        try {
+                            wait(reconnection_delay);
+                        } catch (InterruptedException ignored) {}
+                    }
+                    signal_shutdown = this.signal_shutdown;
+                }
+                continue;
+            }
+
+            // Open pipes, under the same lock as setIncomingMessagePipe
+            synchronized (this) {
+                pipe_out.openReceiver();
+                if (pipe_in_video != null)
+                    pipe_in_video.openSender();
+                if (pipe_in_audio != null)
+                    pipe_in_audio.openSender();
+                pipes_open = true;
+            }
+
+            // Connected
+            main_thread.post(listener::onConnect);
+
+            // Start sender thread
+            final SocketChannel channel_lambda = channel;
+            Thread thread_out = new Thread(() -> threadOutgoing(channel_lambda));
+            thread_out.start();
+
+            try {
+                // Same decoder as the stream connections, which also reads the start of the next header
+                // along with each payload when it's already there
+                while (true) {
+                    ConnectionMessage message = codec.take();
+                    if (message == null) {
+                        if (!codec.read(channel))
+                            break;  // Connection closed
+                        continue;
+                    }
+                    if (dispatch(message, listener, pipe_in_video, pipe_in_audio, pipe_out))
+                        end_call = true;
+                }
+            } catch (InvalidMessage e) {
+                // Nothing after a broken header can be trusted
+                Log.e(TAG, "Terminating connection due to invalid message");
+                main_thread.post(() -> listener.onError(e));
+            } catch (IOException e) {
+                Log.w(TAG, "IOException while receiving from " + address + ": " + e.getMessage());
+                main_thread.post(() -> listener.onError(e));
+            }
+
+            codec.reset();
+
+            // Shut down and close socket
+            listener.onVideoStop();
+            main_thread.post(listener::onDisconnect);
+            synchronized (this) {
+                pipes_open = false;
+                pipe_out.closeReceiver();
+                if (pipe_in_video != null)
+                    pipe_in_video.closeSender();
+                if (pipe_in_audio != null)
+                    pipe_in_audio.closeSender();
+            }
+            try {
+                thread_out.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (this) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+                this.channel = null;
+                remote_address = null;
+
+                // Check if shutting down and pause before reconnecting
+                if (!this.signal_shutdown && !end_call) {
+                    try {
+                        wait(reconnection_delay);
+                    } catch (InterruptedException ignored) {}
+                }
+                signal_shutdown = this.signal_shutdown;
+            }
+        }
+
+        if (channel_server != null) {
+            Log.i(TAG, "Stopping server");
+            synchronized (this) {
+                try {
+                    channel_server.close();
+                } catch (IOException ignored) {}
+                this.channel_server = null;
+            }
+        }
+        if (end_call)
+            main_thread.post(listener::onEndCall);
+        Log.d(TAG, "Stopped socket thread.");
+    }
+
+    private void threadOutgoing(SocketChannel channel) {
+        ConnectionMessage message;
+        ByteBuffer header = ByteBuffer.allocateDirect(MSG_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer[] gather = new ByteBuffer[2];
+        gather[0] = header;
+        try {
+            while (true) {
+                message = pipe_out.receive();
+                if (message == null)
+                    break;
+                ConnectionFrameCodec.writeHeader(message, header);
+
+                // Header and payload go out together in a single write
+                ByteBuffer payload = message.buffer();
+                gather[1] = payload;
+                long start = System.nanoTime();
+                while (header.hasRemaining() || payload.hasRemaining())
+                    channel.write(gather);
+                pipe_out.getLatencyStats().onSent(message, start);
+                gather[1] = null;
+                message.recycle();
+            }
+        } catch (IOException ignored) {}
+        pipe_out.closeReceiver();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException();
+        signal_shutdown = false;
+        thread = new Thread(this::threadIncoming);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Log.d(TAG, "Sending shutdown signal");
+        synchronized (this) {
+            pipes_open = false;
+            pipe_out.closeReceiver();
+            if (pipe_in_video != null)
+                pipe_in_video.closeSender();
+            if (pipe_in_audio != null)
+                pipe_in_audio.closeSender();
+            if (channel != null) {
+                try {
+                    channel.shutdownInput();
+                    Log.d(TAG, "Socket I/O was shut down");
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException when shutting down I/O: " + e.getMessage());
+                }
+            }
+            if (channel_server != null) {
+                try {
+                    channel_server.close();
+                } catch (IOException ignored) {}
+            }
+            signal_shutdown = true;
+            notify();   // Interrupts reconnection delay
+            Log.d(TAG, "Shutdown signal sent");
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        Log.i(TAG, "Shutdown complete");
+        thread = null;
+    }
+
+    @Override
+    public synchronized void setIncomingMessagePipe(int message_type, ConnectionMessagePipe pipe) {
+        ConnectionMessagePipe replaced;
+        switch (message_type) {
+            case Connection.DATA_VIDEO:
+                replaced = pipe_in_video;
+                pipe_in_video = pipe;
+                break;
+
+            case Connection.DATA_AUDIO:
+                replaced = pipe_in_audio;
+                pipe_in_audio = pipe;
+                break;
+
+            default:
+                throw new IllegalArgumentException("Message type " + message_type + " doesn't take a message pipe.");
+        }
+
+        // Pipes set after connecting, like the decoder's once the call is negotiated, are opened right away
+        if (replaced == pipe)
+            return;
+        if (replaced != null)
+            replaced.closeSender();
+        if (pipe != null && pipes_open)
+            pipe.openSender();
+    }
+}
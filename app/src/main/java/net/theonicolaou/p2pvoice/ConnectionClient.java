@@ -26,22 +26,33 @@ public class ConnectionClient extends Connection {
     private final Handler main_thread;
     private Socket socket = null;
     private Thread thread;
-    private final ConnectionMessagePipe pipe_out;
-    private ConnectionMessagePipe pipe_in_video = null, pipe_in_audio = null;
+    private final ConnectionScheduler pipe_out;
+    private volatile ConnectionMessagePipe pipe_in_video = null, pipe_in_audio = null;
+    private boolean pipes_open = false;   // Whether the incoming pipes' senders are open, guarded by this
 
     ConnectionClient(Context context, StatusListener listener, String host, int port) {
         this.listener = listener;
         address = new InetSocketAddress(host, port);
         main_thread = new Handler(context.getMainLooper());
-        pipe_out = new ConnectionMessagePipe(Connection.PIPE_OUT_CAPACITY, false);
+        pipe_out = new ConnectionScheduler(listener::onKeyframeRequest);
         pipe_out.openSender();
     }
 
     @Override
-    public @NotNull ConnectionMessagePipe getOutgoingMessagePipe() {
+    public @NotNull ConnectionPipe getOutgoingMessagePipe() {
         return pipe_out;
     }
 
+    @Override
+    public @NotNull BandwidthEstimator getBandwidthEstimator() {
+        return pipe_out.getBandwidthEstimator();
+    }
+
+    @Override
+    public @NotNull LatencyStats getLatencyStats() {
+        return pipe_out.getLatencyStats();
+    }
+
     private void threadIncoming() {
         boolean signal_shutdown, end_call = false;
         // Don't start immediately, so the activity gets the chance to fully load
@@ -54,6 +65,8 @@ public class ConnectionClient extends Connection {
             signal_shutdown = this.signal_shutdown;
         }
 
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+
         while (!signal_shutdown && !end_call) {
             InputStream socket_reader;
             OutputStream socket_writer;
@@ -102,12 +115,15 @@ public class ConnectionClient extends Connection {
                 continue;
             }
 
-            // Open pipes
-            pipe_out.openReceiver();
-            if (pipe_in_video != null)
-                pipe_in_video.openSender();
-            if (pipe_in_audio != null)
-                pipe_in_audio.openSender();
+            // Open pipes, under the same lock as setIncomingMessagePipe
+            synchronized (this) {
+                pipe_out.openReceiver();
+                if (pipe_in_video != null)
+                    pipe_in_video.openSender();
+                if (pipe_in_audio != null)
+                    pipe_in_audio.openSender();
+                pipes_open = true;
+            }
 
             // Connected
             main_thread.post(listener::onConnect);
@@ -118,110 +134,39 @@ public class ConnectionClient extends Connection {
             thread_out.start();
 
             try {
-                // Start reading data
-                // TODO: Make a buffer that everything gets stored into
-                ByteBuffer param_parser = ByteBuffer.wrap(new byte[8]).order(ByteOrder.BIG_ENDIAN);
+                // The decoder reads each header and payload straight into place and puts messages together
                 while (true) {
-                    // Get message type and size
-                    int type, size;
-                    param_parser.rewind();
-
-                    int header_bytes_read = 0, header_bytes_read_total = 0;
-                    while (header_bytes_read_total < 8) {
-                        header_bytes_read = socket_reader.read(param_parser.array(), header_bytes_read_total, 8 - header_bytes_read_total);
-                        if (header_bytes_read <= 0)
+                    ConnectionMessage message = codec.take();
+                    if (message == null) {
+                        if (!codec.read(socket_reader))
                             break;  // Connection closed
-                        header_bytes_read_total += header_bytes_read;
-                    }
-                    if (header_bytes_read <= 0)
-                        break;
-
-                    type = param_parser.getInt();
-                    size = param_parser.getInt();
-                    // TODO: Check for invalid type
-
-                    if (size < 0) {
-                        // Terminate connection on negative size message
-                        Log.e(TAG, "Terminating connection due to negative size message (" + size + ")");
-                        main_thread.post(() -> listener.onError(new InvalidMessage()));
-                        break;
-                    } else if (size > MSG_SIZE_MAX) {
-                        // Ignore oversized messages
-                        // TODO: Throw exception when there are too many consecutive oversized messages
-                        Log.w(TAG, "Skipping oversized message (" + (size / 1024) + " KB)");
-
-                        long bytes_read, bytes_read_total = 0;
-                        do {
-                            bytes_read = socket_reader.skip(size);
-                            bytes_read_total += bytes_read;
-                            if (bytes_read == 0) {
-                                // return of 0 can mean many things, check if it's EOF
-                                if (socket_reader.read() <= 0)
-                                    bytes_read = -1;
-                                else
-                                    bytes_read_total++;
-                            }
-                        } while (bytes_read_total < size && bytes_read > 0);
-
-                        if (bytes_read <= 0)
-                            break;  // Connection closed
-                    } else {
-                        // Read message into byte array
-                        byte[] message = new byte[size];
-                        int bytes_read, bytes_read_total = 0;
-                        do {
-                            bytes_read = socket_reader.read(message, bytes_read_total, size - bytes_read_total);
-                            bytes_read_total += bytes_read;
-                        } while (bytes_read_total < size && bytes_read > 0);
-                        if (bytes_read <= 0)
-                            break;
-
-                        // Send message to message pipe
-                        switch (type) {
-                            case Connection.DATA_VIDEO:
-                                if (pipe_in_video != null)
-                                    pipe_in_video.send(type, message);
-                                break;
-
-                            case Connection.DATA_AUDIO:
-                                if (pipe_in_audio != null)
-                                    pipe_in_audio.send(type, message);
-                                break;
-
-                            case Connection.DATA_VIDEO_STOP:
-                                listener.onVideoStop();
-                                break;
-
-                            case Connection.DATA_VIDEO_START_90:
-                                listener.onVideoStart(90);
-                                break;
-
-                            case Connection.DATA_VIDEO_START_270:
-                                listener.onVideoStart(270);
-                                break;
-
-                            case Connection.DATA_END_CALL:
-                                end_call = true;
-                                break;
-
-                            default:
-                                Log.w(TAG, "Ignoring message of type=" + type + " size=" + size);
-                        }
+                        continue;
                     }
+                    if (dispatch(message, listener, pipe_in_video, pipe_in_audio, pipe_out))
+                        end_call = true;
                 }
+            } catch (InvalidMessage e) {
+                // Nothing after a broken header can be trusted
+                Log.e(TAG, "Terminating connection due to invalid message");
+                main_thread.post(() -> listener.onError(e));
             } catch (IOException e) {
                 Log.w(TAG, "IOException while receiving from " + address + ": " + e.getMessage());
                 main_thread.post(() -> listener.onError(e));
             }
 
+            codec.reset();
+
             // Shut down and close socket
             listener.onVideoStop();
             main_thread.post(listener::onDisconnect);
-            pipe_out.closeReceiver();
-            if (pipe_in_video != null)
-                pipe_in_video.closeSender();
-            if (pipe_in_audio != null)
-                pipe_in_audio.closeSender();
+            synchronized (this) {
+                pipes_open = false;
+                pipe_out.closeReceiver();
+                if (pipe_in_video != null)
+                    pipe_in_video.closeSender();
+                if (pipe_in_audio != null)
+                    pipe_in_audio.closeSender();
+            }
             try {
                 thread_out.join();
             } catch (InterruptedException e) {
@@ -249,17 +194,19 @@ public class ConnectionClient extends Connection {
 
     private void threadOutgoing(OutputStream socket_writer) {
         ConnectionMessage message;
-        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer header = ByteBuffer.allocate(MSG_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
         try {
             while (true) {
                 message = pipe_out.receive();
                 if (message == null)
                     break;
-                header.rewind();
-                header.putInt(message.type).putInt(message.data.length);
+                ConnectionFrameCodec.writeHeader(message, header);
 
+                long start = System.nanoTime();
                 socket_writer.write(header.array());
-                socket_writer.write(message.data);
+                socket_writer.write(message.data, 0, message.length);
+                pipe_out.getLatencyStats().onSent(message, start);
+                message.recycle();
             }
         } catch (IOException ignored) {}
         pipe_out.closeReceiver();
@@ -278,6 +225,7 @@ public class ConnectionClient extends Connection {
     public void stop() {
         Log.d(TAG, "Sending shutdown signal");
         synchronized (this) {
+            pipes_open = false;
             pipe_out.closeReceiver();
             if (pipe_in_video != null)
                 pipe_in_video.closeSender();
@@ -305,18 +253,29 @@ public class ConnectionClient extends Connection {
     }
 
     @Override
-    public void setIncomingMessagePipe(int message_type, ConnectionMessagePipe pipe) {
+    public synchronized void setIncomingMessagePipe(int message_type, ConnectionMessagePipe pipe) {
+        ConnectionMessagePipe replaced;
         switch (message_type) {
             case Connection.DATA_VIDEO:
+                replaced = pipe_in_video;
                 pipe_in_video = pipe;
                 break;
 
             case Connection.DATA_AUDIO:
+                replaced = pipe_in_audio;
                 pipe_in_audio = pipe;
                 break;
 
             default:
                 throw new IllegalArgumentException("Message type " + message_type + " doesn't take a message pipe.");
         }
+
+        // Pipes set after connecting, like the decoder's once the call is negotiated, are opened right away
+        if (replaced == pipe)
+            return;
+        if (replaced != null)
+            replaced.closeSender();
+        if (pipe != null && pipes_open)
+            pipe.openSender();
     }
 }
@@ -0,0 +1,489 @@
+package net.theonicolaou.p2pvoice;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+// Sends audio and video as sequenced, timestamped datagrams, so a lost packet never holds up anything
+// sent after it. Video frames are split into fragments that fit in a single datagram and reassembled on
+// the other end. Pings and pongs are datagrams too, so the bandwidth estimate measures the path media
+// takes. Everything else (capabilities, video start/stop, keyframe requests, end call) still goes
+// through a reliable ConnectionChannel, which also decides when the call is connected. Datagrams are
+// only taken from the address at the other end of that connection. The server learns the port to send
+// media to from the client's hellos, and only takes media from there.
+//
+// Datagram header (big endian):
+//   type (1 byte), flags (1 byte), fragment index (2 bytes), fragment count (2 bytes),
+//   sequence number within the type's flow (4 bytes), timestamp in microseconds (8 bytes)
+public class ConnectionDatagram extends Connection {
+    private static final String TAG = "ConnectionDatagram";
+    private static final int header_size = 18;
+    private static final int datagram_size_max = 1400;  // Stays under the usual 1500 byte MTU
+    private static final int fragment_size = datagram_size_max - header_size;
+    private static final int fragment_count_max = (MSG_SIZE_MAX + fragment_size - 1) / fragment_size;
+    private static final int socket_buffer_size = 1024 * 1024;
+    private static final int hello_interval = 1000;     // in milliseconds
+    private static final int assembly_slots = 4;
+    private static final int sequence_restart_window = 1000;   // Older than this means the sender restarted
+    private static final byte DATAGRAM_HELLO = -1;
+
+    private final boolean is_server;
+    private final InetSocketAddress address;
+    private final StatusListener listener;
+    private final ConnectionChannel reliable;
+    private final ConnectionScheduler pipe_out;
+    private volatile ConnectionMessagePipe pipe_in_video = null, pipe_in_audio = null;
+    private DatagramSocket socket = null;
+    private Thread thread_in, thread_out;
+    private volatile InetSocketAddress remote;
+    private volatile boolean connected = false;
+
+    // Video frames being put back together, only touched by the incoming thread
+    private static class FrameAssembly {
+        boolean active = false;
+        int sequence, flags, fragments_total, fragments_received, last_fragment_size;
+        long timestamp;
+        ConnectionMessage message;
+        final BitSet fragments = new BitSet();
+    }
+    private final FrameAssembly[] assembly = new FrameAssembly[assembly_slots];
+    private int video_sequence_last = 0;
+    private boolean video_sequence_valid = false;
+
+    private final StatusListener reliable_listener = new StatusListener() {
+        @Override
+        public void onConnect() {
+            connectMedia();
+            listener.onConnect();
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnectMedia();
+            listener.onDisconnect();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            listener.onError(e);
+        }
+
+        @Override
+        public void onVideoStop() {
+            listener.onVideoStop();
+        }
+
+        @Override
+        public void onVideoStart(int degrees) {
+            listener.onVideoStart(degrees);
+        }
+
+        @Override
+        public void onEndCall() {
+            listener.onEndCall();
+        }
+
+        @Override
+        public void onKeyframeRequest() {
+            listener.onKeyframeRequest();
+        }
+
+        @Override
+        public void onAudioLoss(int percent) {
+            listener.onAudioLoss(percent);
+        }
+
+        @Override
+        public void onCapabilities(byte[] data) {
+            listener.onCapabilities(data);
+        }
+
+        @Override
+        public void onVideoFormat(int width, int height, int fps) {
+            listener.onVideoFormat(width, height, fps);
+        }
+    };
+
+    ConnectionDatagram(@NotNull Context context, @NotNull StatusListener listener, String host, int port, boolean is_server) {
+        this.listener = listener;
+        this.is_server = is_server;
+        address = new InetSocketAddress(host, port);
+        // The client always knows where the server is, the server learns it from the client's datagrams
+        remote = is_server ? null : address;
+        // Only carries control messages, the estimate comes from pings sent as datagrams
+        reliable = new ConnectionChannel(context, reliable_listener, host, port, is_server, false);
+        pipe_out = new ConnectionScheduler(listener::onKeyframeRequest);
+        pipe_out.openSender();
+        for (int i = 0; i < assembly_slots; i++)
+            assembly[i] = new FrameAssembly();
+    }
+
+    @Override
+    public @NotNull ConnectionPipe getOutgoingMessagePipe() {
+        return pipe_out;
+    }
+
+    @Override
+    public @NotNull BandwidthEstimator getBandwidthEstimator() {
+        return pipe_out.getBandwidthEstimator();
+    }
+
+    @Override
+    public @NotNull LatencyStats getLatencyStats() {
+        return pipe_out.getLatencyStats();
+    }
+
+    // Called on the main thread when the reliable connection comes up
+    private synchronized void connectMedia() {
+        if (socket == null || thread_out != null)
+            return;
+
+        pipe_out.openReceiver();
+        if (pipe_in_video != null)
+            pipe_in_video.openSender();
+        if (pipe_in_audio != null)
+            pipe_in_audio.openSender();
+        connected = true;
+
+        final DatagramSocket socket_lambda = socket;
+        thread_out = new Thread(() -> threadOutgoing(socket_lambda));
+        thread_out.start();
+    }
+
+    // Called on the main thread when the reliable connection goes down, or when stopping
+    private synchronized void disconnectMedia() {
+        if (thread_out == null)
+            return;
+
+        connected = false;
+        // The next connection may well come from somewhere else
+        if (is_server)
+            remote = null;
+        pipe_out.closeReceiver();
+        if (pipe_in_video != null)
+            pipe_in_video.closeSender();
+        if (pipe_in_audio != null)
+            pipe_in_audio.closeSender();
+        try {
+            thread_out.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        thread_out = null;
+    }
+
+    private void threadOutgoing(DatagramSocket socket) {
+        ConnectionPipe pipe_reliable = reliable.getOutgoingMessagePipe();
+        byte[] datagram = new byte[datagram_size_max];
+        ByteBuffer header = ByteBuffer.wrap(datagram, 0, header_size);
+        DatagramPacket packet = new DatagramPacket(datagram, datagram_size_max);
+        ConnectionMessage message;
+
+        while (true) {
+            message = pipe_out.receive();
+            if (message == null)
+                break;
+
+            // Pings measure the media path, and a lost one doesn't matter
+            if (message.type != DATA_AUDIO && message.type != DATA_VIDEO && message.type != DATA_PING && message.type != DATA_PONG) {
+                // Control messages need to arrive, and in order
+                pipe_reliable.send(message);
+                continue;
+            }
+
+            InetSocketAddress remote = this.remote;
+            int fragments_total = Math.max(1, (message.length + fragment_size - 1) / fragment_size);
+            if (remote == null || fragments_total > fragment_count_max) {
+                message.recycle();
+                continue;
+            }
+
+            long timestamp = message.timestamp != 0 ? message.timestamp : System.nanoTime() / 1000;
+            packet.setSocketAddress(remote);
+            long start = System.nanoTime();
+            try {
+                for (int fragment = 0; fragment < fragments_total; fragment++) {
+                    int offset = fragment * fragment_size;
+                    int size = Math.min(fragment_size, message.length - offset);
+                    header.clear();
+                    header.put((byte) message.type).put((byte) message.flags)
+                            .putShort((short) fragment).putShort((short) fragments_total)
+                            .putInt(message.sequence).putLong(timestamp);
+                    System.arraycopy(message.data, offset, datagram, header_size, size);
+                    packet.setData(datagram, 0, header_size + size);
+                    socket.send(packet);
+                }
+                pipe_out.getLatencyStats().onSent(message, start);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to send datagram: " + e.getMessage());
+            }
+            message.recycle();
+        }
+        pipe_out.closeReceiver();
+    }
+
+    private void threadIncoming(DatagramSocket socket) {
+        byte[] datagram = new byte[datagram_size_max];
+        ByteBuffer parser = ByteBuffer.wrap(datagram);
+        DatagramPacket packet = new DatagramPacket(datagram, datagram_size_max);
+        byte[] hello = new byte[header_size];
+        hello[0] = DATAGRAM_HELLO;
+        DatagramPacket packet_hello = new DatagramPacket(hello, header_size);
+        long hello_last = 0;
+
+        while (true) {
+            // Keep telling the server where to send media to
+            long now = System.nanoTime() / 1000000;
+            if (!is_server && connected && now - hello_last >= hello_interval) {
+                try {
+                    packet_hello.setSocketAddress(address);
+                    socket.send(packet_hello);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to send hello: " + e.getMessage());
+                }
+                hello_last = now;
+            }
+
+            try {
+                packet.setData(datagram, 0, datagram_size_max);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                break;  // Socket closed
+            }
+            if (packet.getLength() < header_size)
+                continue;
+            // Anyone can send a datagram here, only the other end of the call gets listened to
+            InetAddress peer = reliable.getRemoteAddress();
+            if (peer == null || !peer.equals(packet.getAddress()))
+                continue;
+
+            parser.clear();
+            int type = parser.get();
+            InetSocketAddress remote = this.remote;
+            if (type == DATAGRAM_HELLO) {
+                if (is_server && (remote == null || !remote.getAddress().equals(packet.getAddress()) || remote.getPort() != packet.getPort())) {
+                    Log.i(TAG, "Sending media to " + packet.getSocketAddress());
+                    this.remote = (InetSocketAddress) packet.getSocketAddress();
+                }
+                continue;
+            }
+            if (remote == null || remote.getPort() != packet.getPort())
+                continue;
+            int flags = parser.get() & 0xff;
+            int fragment = parser.getShort() & 0xffff;
+            int fragments_total = parser.getShort() & 0xffff;
+            int sequence = parser.getInt();
+            long timestamp = parser.getLong();
+            int size = packet.getLength() - header_size;
+
+            switch (type) {
+                case DATA_AUDIO:
+                    if (pipe_in_audio != null) {
+                        ConnectionMessage message = ConnectionMessage.obtain(DATA_AUDIO, size);
+                        System.arraycopy(datagram, header_size, message.data, 0, size);
+                        message.flags = flags;
+                        message.sequence = sequence;
+                        message.timestamp = timestamp;
+                        message.arrival = System.nanoTime() / 1000;
+                        pipe_out.getLatencyStats().onReceived(message);
+                        pipe_in_audio.send(message);
+                    }
+                    break;
+
+                case DATA_VIDEO:
+                    receiveVideoFragment(datagram, size, fragment, fragments_total, sequence, timestamp, flags);
+                    break;
+
+                case DATA_PING: {
+                    // Echo it right back
+                    ConnectionMessage message = ConnectionMessage.obtain(DATA_PONG, size);
+                    System.arraycopy(datagram, header_size, message.data, 0, size);
+                    pipe_out.send(message);
+                    break;
+                }
+
+                case DATA_PONG:
+                    if (size >= 8)
+                        pipe_out.getBandwidthEstimator().onPong(parser.getLong(header_size), timestamp);
+                    break;
+
+                default:
+                    Log.w(TAG, "Ignoring datagram of type=" + type + " size=" + size);
+            }
+        }
+
+        for (FrameAssembly slot : assembly)
+            dropFrame(slot);
+        video_sequence_valid = false;
+    }
+
+    private void receiveVideoFragment(byte[] datagram, int size, int fragment, int fragments_total, int sequence, long timestamp, int flags) {
+        if (fragments_total == 0 || fragment >= fragments_total || fragments_total > fragment_count_max)
+            return;
+        if (fragment < fragments_total - 1 && size != fragment_size)
+            return;
+        // Too late, a newer frame was already passed on
+        if (video_sequence_valid && sequence - video_sequence_last <= 0 && video_sequence_last - sequence < sequence_restart_window)
+            return;
+
+        // Find the frame this belongs to, or make room for it by dropping the oldest unfinished one
+        FrameAssembly slot = null, slot_oldest = null;
+        for (FrameAssembly i : assembly) {
+            if (i.active && i.sequence == sequence) {
+                slot = i;
+                break;
+            }
+            if (slot_oldest == null || !i.active || (slot_oldest.active && i.sequence - slot_oldest.sequence < 0))
+                slot_oldest = i;
+        }
+        if (slot == null) {
+            slot = slot_oldest;
+            dropFrame(slot);
+            slot.active = true;
+            slot.sequence = sequence;
+            slot.timestamp = timestamp;
+            slot.flags = flags;
+            slot.fragments_total = fragments_total;
+            slot.fragments_received = 0;
+            slot.last_fragment_size = 0;
+            slot.fragments.clear();
+            slot.message = ConnectionMessage.obtain(DATA_VIDEO, Math.min(fragments_total * fragment_size, MSG_SIZE_MAX));
+        }
+        if (slot.fragments_total != fragments_total || slot.fragments.get(fragment))
+            return;
+        if (fragment * fragment_size + size > slot.message.length) {
+            dropFrame(slot);
+            return;
+        }
+
+        System.arraycopy(datagram, header_size, slot.message.data, fragment * fragment_size, size);
+        slot.fragments.set(fragment);
+        slot.fragments_received++;
+        if (fragment == fragments_total - 1)
+            slot.last_fragment_size = size;
+        if (slot.fragments_received < fragments_total)
+            return;
+
+        // Frame complete, anything older than it won't be of any use anymore
+        ConnectionMessage message = slot.message;
+        message.length = (fragments_total - 1) * fragment_size + slot.last_fragment_size;
+        message.flags = slot.flags;
+        message.sequence = sequence;
+        message.timestamp = slot.timestamp;
+        message.arrival = System.nanoTime() / 1000;
+        slot.message = null;
+        slot.active = false;
+        video_sequence_last = sequence;
+        video_sequence_valid = true;
+        for (FrameAssembly i : assembly) {
+            if (i.active && i.sequence - sequence < 0)
+                dropFrame(i);
+        }
+
+        pipe_out.getLatencyStats().onReceived(message);
+        takeVideoFormat(message, listener);
+        if (pipe_in_video != null)
+            pipe_in_video.send(message);
+        else
+            message.recycle();
+    }
+
+    private static void dropFrame(FrameAssembly slot) {
+        if (slot.message != null)
+            slot.message.recycle();
+        slot.message = null;
+        slot.active = false;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (socket != null)
+            throw new IllegalStateException();
+
+        try {
+            socket = is_server ? new DatagramSocket(address) : new DatagramSocket();
+            socket.setSoTimeout(hello_interval);
+            socket.setSendBufferSize(socket_buffer_size);
+            socket.setReceiveBufferSize(socket_buffer_size);
+        } catch (SocketException e) {
+            Log.e(TAG, "Failed to open datagram socket: " + e.getMessage());
+            if (socket != null)
+                socket.close();
+            socket = null;
+            listener.onError(e);
+            return;
+        }
+
+        final DatagramSocket socket_lambda = socket;
+        thread_in = new Thread(() -> threadIncoming(socket_lambda));
+        thread_in.start();
+        reliable.start();
+    }
+
+    @Override
+    public void stop() {
+        Log.d(TAG, "Stopping");
+        reliable.stop();
+        disconnectMedia();
+
+        DatagramSocket socket;
+        Thread thread_in;
+        synchronized (this) {
+            socket = this.socket;
+            thread_in = this.thread_in;
+            this.socket = null;
+            this.thread_in = null;
+        }
+        if (socket == null)
+            return;
+        socket.close();
+        try {
+            thread_in.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (is_server)
+            remote = null;
+        Log.i(TAG, "Shutdown complete");
+    }
+
+    @Override
+    public synchronized void setIncomingMessagePipe(int message_type, ConnectionMessagePipe pipe) {
+        ConnectionMessagePipe replaced;
+        switch (message_type) {
+            case Connection.DATA_VIDEO:
+                replaced = pipe_in_video;
+                pipe_in_video = pipe;
+                break;
+
+            case Connection.DATA_AUDIO:
+                replaced = pipe_in_audio;
+                pipe_in_audio = pipe;
+                break;
+
+            default:
+                throw new IllegalArgumentException("Message type " + message_type + " doesn't take a message pipe.");
+        }
+
+        // Pipes set after connecting, like the decoder's once the call is negotiated, are opened right away
+        if (replaced == pipe)
+            return;
+        if (replaced != null)
+            replaced.closeSender();
+        if (pipe != null && connected)
+            pipe.openSender();
+    }
+}
@@ -0,0 +1,161 @@
+package net.theonicolaou.p2pvoice;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ScatteringByteChannel;
+
+// Message framing on stream connections (see Connection.MSG_HEADER_SIZE). Decoding is incremental: it
+// keeps its place between calls, and hands out each message once all of it has arrived. Reads go
+// straight to where the bytes belong, the header into the decoder's own buffer where it's parsed in
+// place, the payload into the message's pooled buffer, so nothing gets staged and copied on the way.
+// Oversized messages are skipped. One decoder per stream, not thread safe.
+public class ConnectionFrameCodec {
+    private static final String TAG = "ConnectionFrameCodec";
+    private static final int skip_buffer_size = 4096;
+
+    private final ByteBuffer header = ByteBuffer.allocate(Connection.MSG_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer skip = ByteBuffer.allocate(skip_buffer_size);
+    // Where the next read goes: the payload being read and whatever follows it of the next header, the
+    // header alone, or the part of an oversized message being skipped
+    private final ByteBuffer[] targets_payload = new ByteBuffer[2];
+    private final ByteBuffer[] targets_header = {header};
+    private final ByteBuffer[] targets_skip = {skip};
+    private ConnectionMessage message = null;   // Waiting for its payload
+    private ByteBuffer payload = null;
+    private long skip_left = 0;
+    private long skipped = 0;
+
+    // Writes the header for the message and flips the buffer, ready to be written out
+    public static void writeHeader(ConnectionMessage message, ByteBuffer header) {
+        long timestamp = message.timestamp != 0 ? message.timestamp : System.nanoTime() / 1000;
+        header.clear();
+        header.putInt(message.type)
+                .putInt(message.length)
+                .putInt(message.sequence)
+                .putLong(timestamp)
+                .putInt(message.flags);
+        header.flip();
+    }
+
+    // Reads whatever the next message needs from the stream, without waiting for more than one read
+    // returns. Returns false once the stream is closed.
+    public boolean read(InputStream stream) throws IOException {
+        ByteBuffer target = targets()[0];
+        int bytes_read = stream.read(target.array(), target.arrayOffset() + target.position(), target.remaining());
+        if (bytes_read < 0)
+            return false;
+        target.position(target.position() + bytes_read);
+        return true;
+    }
+
+    // Same for a channel, which also gets the start of the next header along with a payload when it's
+    // already there
+    public boolean read(ScatteringByteChannel channel) throws IOException {
+        return channel.read(targets()) >= 0;
+    }
+
+    // Decodes from input that's already in memory, taking as much of it as the next message needs
+    public ConnectionMessage decode(ByteBuffer input) throws Connection.InvalidMessage {
+        while (true) {
+            ConnectionMessage complete = take();
+            if (complete != null || !input.hasRemaining())
+                return complete;
+            transfer(input, targets()[0]);
+        }
+    }
+
+    // Returns the next message once all of it has been read, or null when more input is needed. Call it
+    // until it returns null before reading again. The caller has to recycle the message. Throws
+    // InvalidMessage on an invalid type or a negative size, after which the rest of the stream can't be
+    // trusted.
+    public ConnectionMessage take() throws Connection.InvalidMessage {
+        while (true) {
+            if (skip_left > 0) {
+                skip_left -= skip.position();
+                skip.clear();
+                if (skip_left > 0)
+                    return null;
+            }
+
+            if (message == null) {
+                if (header.hasRemaining())
+                    return null;
+                int type = header.getInt(0);
+                int size = header.getInt(4);
+                int sequence = header.getInt(8);
+                long timestamp = header.getLong(12);
+                int flags = header.getInt(20);
+                header.clear();
+
+                if (!Connection.isValidType(type) || size < 0) {
+                    throw new Connection.InvalidMessage();
+                } else if (size > Connection.MSG_SIZE_MAX) {
+                    Log.w(TAG, "Skipping oversized message (" + (size / 1024) + " KB)");
+                    skip_left = size;
+                    skipped++;
+                    continue;
+                }
+
+                message = ConnectionMessage.obtain(type, size);
+                message.flags = flags;
+                message.sequence = sequence;
+                message.timestamp = timestamp;
+                payload = message.buffer();
+            }
+
+            // Empty payloads are complete as soon as their header is
+            if (payload.hasRemaining())
+                return null;
+            ConnectionMessage complete = message;
+            message = null;
+            payload = null;
+            complete.arrival = System.nanoTime() / 1000;
+            return complete;
+        }
+    }
+
+    // Never full, so a read into them always has room
+    private ByteBuffer[] targets() {
+        if (skip_left > 0) {
+            skip.limit((int) Math.min(skip_left, skip_buffer_size));
+            return targets_skip;
+        }
+        if (payload != null) {
+            targets_payload[0] = payload;
+            targets_payload[1] = header;
+            return targets_payload;
+        }
+        return targets_header;
+    }
+
+    // Drops a partially received message, for reusing the decoder on a new stream
+    public void reset() {
+        if (message != null)
+            message.recycle();
+        message = null;
+        payload = null;
+        targets_payload[0] = null;
+        header.clear();
+        skip.clear();
+        skip_left = 0;
+    }
+
+    // Number of oversized messages skipped so far
+    public long getSkipped() {
+        return skipped;
+    }
+
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int size = Math.min(from.remaining(), to.remaining());
+        if (size == 0)
+            return;
+        int limit = from.limit();
+        from.limit(from.position() + size);
+        to.put(from);
+        from.limit(limit);
+    }
+}
@@ -1,11 +1,101 @@
 package net.theonicolaou.p2pvoice;
 
+import java.nio.ByteBuffer;
+
 public class ConnectionMessage {
+    public static final int FLAG_KEYFRAME = 1;  // Decodable on its own, never dropped to make room
+    public static final int FLAG_REDUNDANT = 2; // Carries a copy of the previous message too (see AudioPacketizer)
+    public static final int FLAG_DTX = 4;       // Last frame before the sender goes quiet for a while
+    public static final int FLAG_CODEC_CONFIG = 8;  // Decoder setup (like H.264's SPS and PPS), not a frame
+    public static final int FLAG_FORMAT = 16;   // Video frame ends in the picture's format (see Connection.takeVideoFormat())
+
+    private static final int pool_size_max = 256;
+    private static final Object pool_lock = new Object();
+    private static ConnectionMessage pool = null;
+    private static int pool_size = 0;
+
     public int type;
     public byte[] data;
+    public int length;          // data may be larger than the message itself
+    public int flags;
+    public int sequence;        // per-flow sequence number, set by the sending connection
+    public long timestamp;      // in microseconds, set by the sender or else the sending connection
+    public long arrival;        // in microseconds (System.nanoTime() / 1000), when it was received
+    long queued;                // in nanoseconds, when it entered the outgoing scheduler
+    private ByteBuffer buffer = null;
+    private boolean data_leased = false, in_use = true;
+    private ConnectionMessage next = null;
 
-    ConnectionMessage(int type, byte[] data) {
+    private static ConnectionMessage obtainEmpty(int type) {
+        synchronized (pool_lock) {
+            if (pool != null) {
+                ConnectionMessage message = pool;
+                pool = message.next;
+                message.next = null;
+                message.in_use = true;
+                message.type = type;
+                message.flags = 0;
+                message.sequence = 0;
+                message.timestamp = 0;
+                message.arrival = 0;
+                pool_size--;
+                return message;
+            }
+        }
+        return new ConnectionMessage(type);
+    }
+
+    private ConnectionMessage(int type) {
         this.type = type;
-        this.data = data;
+    }
+
+    // Message with a buffer leased from ConnectionBufferPool, for the caller to fill in.
+    public static ConnectionMessage obtain(int type, int length) {
+        ConnectionMessage message = obtainEmpty(type);
+        message.buffer = ConnectionBufferPool.lease(length);
+        message.data = message.buffer.array();
+        message.length = length;
+        message.data_leased = true;
+        return message;
+    }
+
+    // Message wrapping an existing array, which is not returned to the buffer pool.
+    public static ConnectionMessage obtain(int type, byte[] data) {
+        ConnectionMessage message = obtainEmpty(type);
+        message.buffer = null;
+        message.data = data;
+        message.length = data.length;
+        message.data_leased = false;
+        return message;
+    }
+
+    // ByteBuffer over the message's data, positioned at the start and limited to its length.
+    public ByteBuffer buffer() {
+        if (buffer == null)
+            buffer = ByteBuffer.wrap(data);
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    // Returns the message and its buffer to their pools. Whoever ends up with the message (usually
+    // the receiving end of a pipe) is responsible for this, and must not touch it afterwards.
+    public void recycle() {
+        if (!in_use)
+            throw new IllegalStateException("Message was already recycled");
+        in_use = false;
+        if (data_leased)
+            ConnectionBufferPool.release(buffer);
+        buffer = null;
+        data = null;
+        length = 0;
+        data_leased = false;
+
+        synchronized (pool_lock) {
+            if (pool_size < pool_size_max) {
+                next = pool;
+                pool = this;
+                pool_size++;
+            }
+        }
     }
 }
@@ -1,60 +1,132 @@
 package net.theonicolaou.p2pvoice;
 
-import android.util.Log;
-
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class ConnectionMessagePipe {
-    private final String TAG = "ConnectionMessagePipe";
-
-    public static final int RATE_UNDERFLOW = -1;
-    public static final int RATE_NORMAL = 0;
-    public static final int RATE_OVERFLOW = 1;
-
+public class ConnectionMessagePipe implements ConnectionPipe {
     private final Lock lock;
     private final Condition condition_receiver, condition_sender;
     private final Queue<ConnectionMessage> queue;
-    private boolean open_receiver = false, open_sender = false;
-    private final boolean drop_frames;
+    private volatile boolean open_receiver = false, open_sender = false;
+    private final boolean drop_frames, lock_free;
+    private final Runnable on_gop_drop;
+    private volatile Runnable on_receivable = null;
+    private final AtomicBoolean gop_dropped = new AtomicBoolean();
+    private boolean skip_to_keyframe = false;
     private final int capacity;
-    private int rate_hint;
+    private volatile int rate_hint;
+
+    // Ring buffer for lock-free mode. Only the sender moves the tail and only the receiver moves
+    // the head, so each side just has to publish its own position.
+    private final AtomicReferenceArray<ConnectionMessage> ring;
+    private final int ring_mask;
+    private final AtomicLong ring_head, ring_tail;
+    private volatile Thread waiting_receiver = null, waiting_sender = null;
+
+    private final ConnectionPipeCounters counters = new ConnectionPipeCounters();
 
     ConnectionMessagePipe(int capacity, boolean drop_frames) {
+        this(capacity, drop_frames, false);
+    }
+
+    // lock_free: use a ring buffer instead of a lock. Only valid when there's a single sender thread
+    // and a single receiver thread at any given time.
+    ConnectionMessagePipe(int capacity, boolean drop_frames, boolean lock_free) {
+        this(capacity, drop_frames, lock_free, null);
+    }
+
+    // For video. When full, makes room by dropping the oldest frame that isn't a keyframe, along with
+    // the frames after it up to the next keyframe, since they can't be decoded without it. If there's
+    // no keyframe after it, new frames are dropped until one comes in. on_gop_drop gets called on the
+    // sender's thread after frames were dropped, so a keyframe can be requested.
+    ConnectionMessagePipe(int capacity, @NotNull Runnable on_gop_drop) {
+        this(capacity, true, false, on_gop_drop);
+    }
+
+    private ConnectionMessagePipe(int capacity, boolean drop_frames, boolean lock_free, Runnable on_gop_drop) {
         this.capacity = capacity;
         this.drop_frames = drop_frames;
-        lock = new ReentrantLock(true);
-        condition_receiver = lock.newCondition();
-        condition_sender = lock.newCondition();
-        queue = new ArrayDeque<>(capacity);
+        this.lock_free = lock_free;
+        this.on_gop_drop = on_gop_drop;
+        if (lock_free) {
+            int ring_size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            ring = new AtomicReferenceArray<>(ring_size);
+            ring_mask = ring_size - 1;
+            ring_head = new AtomicLong();
+            ring_tail = new AtomicLong();
+            lock = null;
+            condition_receiver = condition_sender = null;
+            queue = null;
+        } else {
+            ring = null;
+            ring_mask = 0;
+            ring_head = ring_tail = null;
+            lock = new ReentrantLock(true);
+            condition_receiver = lock.newCondition();
+            condition_sender = lock.newCondition();
+            queue = new ArrayDeque<>(capacity);
+        }
     }
 
-    public boolean send(int type, @NotNull byte[] data) throws Connection.InvalidMessage {
-        if (data.length > Connection.MSG_SIZE_MAX)
+    @Override
+    public boolean send(@NotNull ConnectionMessage message) throws Connection.InvalidMessage {
+        if (message.length > Connection.MSG_SIZE_MAX) {
+            message.recycle();
             throw new Connection.InvalidMessage();
+        }
+
+        boolean sent = lock_free ? sendLockFree(message) : sendLocked(message);
+        if (!sent)
+            message.recycle();
+        else
+            notifyReceivable();
+        if (on_gop_drop != null && gop_dropped.getAndSet(false))
+            on_gop_drop.run();
+        return sent;
+    }
 
+    private boolean sendLocked(ConnectionMessage message) {
         lock.lock();
         try {
             if (queue.size() > capacity / 4)
                 rate_hint = RATE_OVERFLOW;
 
-            if (drop_frames && (queue.size() >= capacity)) {
-                Log.w(TAG, "Dropping frame on full pipe, size=" + queue.size());
+            if (on_gop_drop != null) {
+                boolean keyframe = (message.flags & ConnectionMessage.FLAG_KEYFRAME) != 0;
+                if (skip_to_keyframe && !keyframe) {
+                    counters.countDropped(1);
+                    return false;
+                }
+                skip_to_keyframe = false;
+                if (queue.size() >= capacity && !dropGopTail() && !keyframe) {
+                    skip_to_keyframe = true;
+                    counters.countDropped(1);
+                    return false;
+                }
+            } else if (drop_frames && (queue.size() >= capacity)) {
+                counters.countDropped(1);
                 return false;
             }
-            while (open_receiver && open_sender && (queue.size() >= capacity)) {
-                if (queue.size() >= capacity)
-                    Log.w(TAG, "Waiting on full pipe, size=" + queue.size());
-                condition_sender.awaitUninterruptibly();
+            if (open_receiver && open_sender && (queue.size() >= capacity)) {
+                long wait_start = System.nanoTime();
+                while (open_receiver && open_sender && (queue.size() >= capacity))
+                    condition_sender.awaitUninterruptibly();
+                counters.countSenderBlocked(wait_start);
             }
 
             if (open_receiver && open_sender) {
-                queue.add(new ConnectionMessage(type, data));
+                counters.countEnqueued(message, queue.size());
+                queue.add(message);
                 condition_receiver.signal();
                 return true;
             } else {
@@ -65,7 +137,100 @@ public class ConnectionMessagePipe {
         }
     }
 
+    // Returns whether frames queued after this point can still be decoded, which is when a keyframe
+    // follows what was dropped. Must hold the lock.
+    private boolean dropGopTail() {
+        Iterator<ConnectionMessage> i = queue.iterator();
+        boolean keyframe_after = false;
+        int dropped = 0;
+        while (i.hasNext()) {
+            ConnectionMessage message = i.next();
+            if ((message.flags & ConnectionMessage.FLAG_KEYFRAME) != 0) {
+                if (dropped > 0) {
+                    keyframe_after = true;
+                    break;
+                }
+                continue;
+            }
+            i.remove();
+            message.recycle();
+            dropped++;
+        }
+        if (dropped == 0) {
+            // Nothing but keyframes, the oldest one is the least useful. Codec config stays, since the
+            // keyframes after it need it.
+            ConnectionMessage oldest = queue.peek();
+            for (ConnectionMessage message : queue) {
+                if ((message.flags & ConnectionMessage.FLAG_CODEC_CONFIG) == 0) {
+                    oldest = message;
+                    break;
+                }
+            }
+            queue.remove(oldest);
+            oldest.recycle();
+            dropped = 1;
+            keyframe_after = true;
+        }
+        counters.countDropped(dropped);
+        gop_dropped.set(true);
+        return keyframe_after;
+    }
+
+    private boolean sendLockFree(ConnectionMessage message) {
+        long tail = ring_tail.get();
+        long size = tail - ring_head.get();
+        if (size > capacity / 4)
+            rate_hint = RATE_OVERFLOW;
+
+        if (drop_frames && (size >= capacity)) {
+            counters.countDropped(1);
+            return false;
+        }
+        if (open_receiver && open_sender && (size >= capacity)) {
+            long wait_start = System.nanoTime();
+            while (open_receiver && open_sender && (tail - ring_head.get() >= capacity)) {
+                // Check again after announcing ourselves, in case the receiver made room in between
+                waiting_sender = Thread.currentThread();
+                if (open_receiver && open_sender && (tail - ring_head.get() >= capacity))
+                    LockSupport.park(this);
+                waiting_sender = null;
+            }
+            counters.countSenderBlocked(wait_start);
+        }
+
+        if (open_receiver && open_sender) {
+            counters.countEnqueued(message, tail - ring_head.get());
+            ring.lazySet((int) tail & ring_mask, message);
+            ring_tail.set(tail + 1);
+            // Only wake up the receiver if it's actually waiting
+            Thread receiver = waiting_receiver;
+            if (receiver != null)
+                LockSupport.unpark(receiver);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
     public ConnectionMessage receive() {
+        return receive(true);
+    }
+
+    @Override
+    public ConnectionMessage poll() {
+        return receive(false);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open_receiver && open_sender;
+    }
+
+    private ConnectionMessage receive(boolean wait) {
+        if (lock_free)
+            return receiveLockFree(wait);
+
         lock.lock();
         try {
             if (queue.isEmpty())
@@ -73,13 +238,18 @@ public class ConnectionMessagePipe {
             else if (queue.size() < capacity / 4)
                 rate_hint = RATE_NORMAL;
 
-            while (open_receiver && open_sender && queue.isEmpty()) {
-                condition_receiver.awaitUninterruptibly();
+            if (wait && open_receiver && open_sender && queue.isEmpty()) {
+                long wait_start = System.nanoTime();
+                while (open_receiver && open_sender && queue.isEmpty())
+                    condition_receiver.awaitUninterruptibly();
+                counters.countReceiverIdle(wait_start);
             }
 
             if (open_receiver && !queue.isEmpty()) {
                 condition_sender.signal();
-                return queue.remove();
+                ConnectionMessage message = queue.remove();
+                counters.countDequeued(message);
+                return message;
             } else {
                 return null;
             }
@@ -88,19 +258,100 @@ public class ConnectionMessagePipe {
         }
     }
 
+    private ConnectionMessage receiveLockFree(boolean wait) {
+        long head = ring_head.get();
+        long size = ring_tail.get() - head;
+        if (size == 0)
+            rate_hint = RATE_UNDERFLOW;
+        else if (size < capacity / 4)
+            rate_hint = RATE_NORMAL;
+
+        long wait_start = 0;
+        while (open_receiver) {
+            if (ring_tail.get() != head) {
+                int index = (int) head & ring_mask;
+                ConnectionMessage message = ring.get(index);
+                ring.lazySet(index, null);
+                ring_head.set(head + 1);
+                // Only wake up the sender if it's actually waiting
+                Thread sender = waiting_sender;
+                if (sender != null)
+                    LockSupport.unpark(sender);
+                if (wait_start != 0)
+                    counters.countReceiverIdle(wait_start);
+                counters.countDequeued(message);
+                return message;
+            }
+            if (!wait || !open_sender)
+                break;
+
+            // Check again after announcing ourselves, in case the sender added something in between
+            if (wait_start == 0)
+                wait_start = System.nanoTime();
+            waiting_receiver = Thread.currentThread();
+            if (open_receiver && open_sender && (ring_tail.get() == head))
+                LockSupport.park(this);
+            waiting_receiver = null;
+        }
+        if (wait_start != 0)
+            counters.countReceiverIdle(wait_start);
+        return null;
+    }
+
+    // For receivers that poll() instead of waiting in receive(). Gets called on the sender's thread after
+    // a message was queued, and on whichever thread closes the pipe, so the receiver knows to come
+    // back for it or for the null that ends the stream.
+    public void setOnReceivable(Runnable on_receivable) {
+        this.on_receivable = on_receivable;
+    }
+
+    private void notifyReceivable() {
+        Runnable on_receivable = this.on_receivable;
+        if (on_receivable != null)
+            on_receivable.run();
+    }
+
+    @Override
     public void openSender() {
+        if (lock_free) {
+            open_sender = true;
+            return;
+        }
         lock.lock();
         open_sender = true;
         lock.unlock();
     }
 
+    @Override
     public void openReceiver() {
+        if (lock_free) {
+            // Messages left over from the previous receiver are dropped here instead of when closing,
+            // since the receiver thread is the only one allowed to move the head while it's running.
+            if (!open_receiver) {
+                long tail = ring_tail.get();
+                for (long head = ring_head.get(); head < tail; head++) {
+                    ConnectionMessage message = ring.getAndSet((int) head & ring_mask, null);
+                    if (message != null)
+                        message.recycle();
+                }
+                ring_head.set(tail);
+                open_receiver = true;
+            }
+            return;
+        }
         lock.lock();
         open_receiver = true;
         lock.unlock();
     }
 
+    @Override
     public void closeSender() {
+        if (lock_free) {
+            open_sender = false;
+            wakeUpWaiting();
+            notifyReceivable();
+            return;
+        }
         lock.lock();
         try {
             open_sender = false;
@@ -109,21 +360,48 @@ public class ConnectionMessagePipe {
         } finally {
             lock.unlock();
         }
+        notifyReceivable();
     }
 
+    @Override
     public void closeReceiver() {
+        if (lock_free) {
+            open_receiver = false;
+            wakeUpWaiting();
+            notifyReceivable();
+            return;
+        }
         lock.lock();
         try {
             open_receiver = false;
-            queue.clear();
+            ConnectionMessage message;
+            while ((message = queue.poll()) != null)
+                message.recycle();
             condition_sender.signalAll();
             condition_receiver.signalAll();
         } finally {
             lock.unlock();
         }
+        notifyReceivable();
+    }
+
+    private void wakeUpWaiting() {
+        Thread sender = waiting_sender, receiver = waiting_receiver;
+        if (sender != null)
+            LockSupport.unpark(sender);
+        if (receiver != null)
+            LockSupport.unpark(receiver);
     }
 
+    @Override
+    public Stats getStats() {
+        return counters.getStats();
+    }
+
+    @Override
     public int getRateHint() {
+        if (lock_free)
+            return rate_hint;
         lock.lock();
         try {
             return rate_hint;
@@ -0,0 +1,71 @@
+package net.theonicolaou.p2pvoice;
+
+import org.jetbrains.annotations.NotNull;
+
+// What senders and receivers of messages see of a pipe. ConnectionMessagePipe is the plain one, and a
+// connection's outgoing side is a ConnectionScheduler, which queues by class instead.
+public interface ConnectionPipe {
+    int RATE_UNDERFLOW = -1;
+    int RATE_NORMAL = 0;
+    int RATE_OVERFLOW = 1;
+
+    // Snapshot of a pipe's counters since it was created. Histograms have power of 2 buckets: bucket 0
+    // counts zeros, and bucket i values from 2^(i-1) up to 2^i - 1.
+    class Stats {
+        public long enqueued, dequeued, dropped;
+        public long sender_blocked, receiver_idle;  // in microseconds
+        public long depth_max;
+        public final long[] depth = new long[ConnectionPipeCounters.histogram_size];  // messages already waiting, on enqueue
+        public final long[] wait = new long[ConnectionPipeCounters.histogram_size];   // time spent waiting, in microseconds
+
+        // Upper bound of the given percentile of a histogram
+        public static long percentile(long[] histogram, double percentile) {
+            long total = 0;
+            for (long count : histogram)
+                total += count;
+            long rank = (long) Math.ceil(total * percentile / 100), seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0)
+                    return (1L << i) - 1;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "enqueued=" + enqueued + " dequeued=" + dequeued + " dropped=" + dropped +
+                    " depth_max=" + depth_max + " depth_p99=" + percentile(depth, 99) +
+                    " wait_p50=" + percentile(wait, 50) + "us wait_p99=" + percentile(wait, 99) + "us" +
+                    " sender_blocked=" + sender_blocked / 1000 + "ms receiver_idle=" + receiver_idle / 1000 + "ms";
+        }
+    }
+
+    default boolean send(int type, @NotNull byte[] data) throws Connection.InvalidMessage {
+        if (data.length > Connection.MSG_SIZE_MAX)
+            throw new Connection.InvalidMessage();
+        return send(ConnectionMessage.obtain(type, data));
+    }
+
+    // Takes ownership of the message. If it can't be delivered, it's recycled here.
+    boolean send(@NotNull ConnectionMessage message) throws Connection.InvalidMessage;
+
+    // The caller has to recycle the returned message when done with it.
+    ConnectionMessage receive();
+
+    // Same as receive(), but returns null right away instead of waiting when the pipe is empty.
+    ConnectionMessage poll();
+
+    // Whether receive() would still wait for messages, instead of returning null
+    boolean isOpen();
+
+    void openSender();
+    void openReceiver();
+    void closeSender();
+    void closeReceiver();
+
+    Stats getStats();
+
+    // One of the RATE_ constants, for senders that can adapt how much they send
+    int getRateHint();
+}
@@ -0,0 +1,72 @@
+package net.theonicolaou.p2pvoice;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The counters behind ConnectionPipe.getStats(). They're cheap enough to always keep, instead of logging
+// every drop and wait. Each one is only written while holding the pipe's lock, or in a lock-free pipe by
+// a single side (enqueued, dropped, sender blocked, depth: the sender; the rest: the receiver), so they
+// only need ordered stores.
+class ConnectionPipeCounters {
+    static final int histogram_size = 32;
+    private static final int STAT_ENQUEUED = 0;
+    private static final int STAT_DEQUEUED = 1;
+    private static final int STAT_DROPPED = 2;
+    private static final int STAT_SENDER_BLOCKED = 3;
+    private static final int STAT_RECEIVER_IDLE = 4;
+    private static final int STAT_DEPTH_MAX = 5;
+    private static final int stat_count = 6;
+
+    private final AtomicLongArray stats = new AtomicLongArray(stat_count);
+    private final AtomicLongArray stats_depth = new AtomicLongArray(histogram_size);
+    private final AtomicLongArray stats_wait = new AtomicLongArray(histogram_size);
+
+    ConnectionPipe.Stats getStats() {
+        ConnectionPipe.Stats snapshot = new ConnectionPipe.Stats();
+        snapshot.enqueued = stats.get(STAT_ENQUEUED);
+        snapshot.dequeued = stats.get(STAT_DEQUEUED);
+        snapshot.dropped = stats.get(STAT_DROPPED);
+        snapshot.sender_blocked = stats.get(STAT_SENDER_BLOCKED) / 1000;
+        snapshot.receiver_idle = stats.get(STAT_RECEIVER_IDLE) / 1000;
+        snapshot.depth_max = stats.get(STAT_DEPTH_MAX);
+        for (int i = 0; i < histogram_size; i++) {
+            snapshot.depth[i] = stats_depth.get(i);
+            snapshot.wait[i] = stats_wait.get(i);
+        }
+        return snapshot;
+    }
+
+    // Only to be called by one thread at a time for each counter, see above
+    private static void increment(AtomicLongArray counters, int index, long amount) {
+        counters.lazySet(index, counters.get(index) + amount);
+    }
+
+    private static int bucketOf(long value) {
+        return Math.min(histogram_size - 1, 64 - Long.numberOfLeadingZeros(Math.max(value, 0)));
+    }
+
+    // The message is about to be queued behind depth others
+    void countEnqueued(ConnectionMessage message, long depth) {
+        message.queued = System.nanoTime();
+        increment(stats, STAT_ENQUEUED, 1);
+        increment(stats_depth, bucketOf(depth), 1);
+        if (depth + 1 > stats.get(STAT_DEPTH_MAX))
+            stats.lazySet(STAT_DEPTH_MAX, depth + 1);
+    }
+
+    void countDequeued(ConnectionMessage message) {
+        increment(stats, STAT_DEQUEUED, 1);
+        increment(stats_wait, bucketOf((System.nanoTime() - message.queued) / 1000), 1);
+    }
+
+    void countDropped(int count) {
+        increment(stats, STAT_DROPPED, count);
+    }
+
+    void countSenderBlocked(long wait_start) {
+        increment(stats, STAT_SENDER_BLOCKED, System.nanoTime() - wait_start);
+    }
+
+    void countReceiverIdle(long wait_start) {
+        increment(stats, STAT_RECEIVER_IDLE, System.nanoTime() - wait_start);
+    }
+}
@@ -0,0 +1,298 @@
+package net.theonicolaou.p2pvoice;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Outgoing pipe of a connection. Control messages go out first, then audio, then video, so voice never
+// waits behind a backlog of video frames. Frames that sat past their deadline are dropped instead of
+// sent late, along with the video up to the next keyframe, which on_video_drop asks the encoder for.
+public class ConnectionScheduler implements ConnectionPipe {
+    private static final int CLASS_CONTROL = 0;
+    private static final int CLASS_AUDIO = 1;
+    private static final int CLASS_VIDEO = 2;
+    private static final int class_count = 3;
+
+    private static final int[] capacity = {32, 16, 60};
+    private static final long[] deadline = {0, 200_000_000L, 1000_000_000L};   // in nanoseconds, 0 for none
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition condition_receiver = lock.newCondition();
+    private final Condition[] condition_sender = new Condition[class_count];
+    private final List<ArrayDeque<ConnectionMessage>> queues = new ArrayList<>(class_count);
+    private boolean open_receiver = false, open_sender = false;
+    private int rate_hint = RATE_NORMAL;
+    private final int[] sequence = new int[class_count];
+    private final Runnable on_video_drop;
+    private final boolean ping;
+    private boolean video_broken = false;       // dropped video, waiting for a keyframe
+    private boolean video_drop_report = false;
+    private final BandwidthEstimator estimator = new BandwidthEstimator();
+    private final LatencyStats latency = new LatencyStats(estimator);
+    private final ConnectionPipeCounters counters = new ConnectionPipeCounters();
+
+    ConnectionScheduler(@NotNull Runnable on_video_drop) {
+        this(on_video_drop, true);
+    }
+
+    // Without pings nothing feeds the estimator's RTT, for pipes whose estimate nobody reads
+    ConnectionScheduler(@NotNull Runnable on_video_drop, boolean ping) {
+        this.on_video_drop = on_video_drop;
+        this.ping = ping;
+        for (int i = 0; i < class_count; i++) {
+            queues.add(new ArrayDeque<>(capacity[i]));
+            condition_sender[i] = lock.newCondition();
+        }
+    }
+
+    private static int classOf(int type) {
+        switch (type) {
+            case Connection.DATA_AUDIO:
+                return CLASS_AUDIO;
+            case Connection.DATA_VIDEO:
+                return CLASS_VIDEO;
+            default:
+                return CLASS_CONTROL;
+        }
+    }
+
+    @Override
+    public boolean send(@NotNull ConnectionMessage message) throws Connection.InvalidMessage {
+        if (message.length > Connection.MSG_SIZE_MAX) {
+            message.recycle();
+            throw new Connection.InvalidMessage();
+        }
+
+        int message_class = classOf(message.type);
+        ArrayDeque<ConnectionMessage> queue = queues.get(message_class);
+        int type = message.type;
+        long timestamp = message.timestamp, queued = 0;
+        boolean sent = false;
+        lock.lock();
+        try {
+            if (message_class == CLASS_VIDEO && queue.size() > capacity[CLASS_VIDEO] / 4)
+                rate_hint = RATE_OVERFLOW;
+
+            if (message_class == CLASS_AUDIO) {
+                // A newer audio frame is worth more than an older one
+                if (queue.size() >= capacity[CLASS_AUDIO] && open_receiver && open_sender) {
+                    queue.remove().recycle();
+                    counters.countDropped(1);
+                }
+            } else if (open_receiver && open_sender && queue.size() >= capacity[message_class]) {
+                long wait_start = System.nanoTime();
+                while (open_receiver && open_sender && queue.size() >= capacity[message_class])
+                    condition_sender[message_class].awaitUninterruptibly();
+                counters.countSenderBlocked(wait_start);
+            }
+
+            if (open_receiver && open_sender) {
+                message.sequence = message_class == CLASS_CONTROL ? 0 : sequence[message_class]++;
+                counters.countEnqueued(message, depth());
+                queued = message.queued;
+                queue.add(message);
+                condition_receiver.signal();
+                sent = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The message belongs to the sending thread now
+        if (sent) {
+            latency.onQueued(type, timestamp, queued);
+            return true;
+        }
+        message.recycle();
+        return false;
+    }
+
+    @Override
+    public ConnectionMessage receive() {
+        return receive(true);
+    }
+
+    @Override
+    public ConnectionMessage poll() {
+        return receive(false);
+    }
+
+    private ConnectionMessage receive(boolean wait) {
+        ConnectionMessage message = null;
+        long wait_start = 0;
+        boolean video_dropped;
+        lock.lock();
+        try {
+            while (open_receiver) {
+                message = dequeue();
+                if (message != null)
+                    break;
+                if (!wait || !open_sender)
+                    break;
+                if (wait_start == 0)
+                    wait_start = System.nanoTime();
+                condition_receiver.awaitUninterruptibly();
+            }
+            if (wait_start != 0)
+                counters.countReceiverIdle(wait_start);
+            video_dropped = video_drop_report;
+            video_drop_report = false;
+        } finally {
+            lock.unlock();
+        }
+        if (video_dropped)
+            on_video_drop.run();
+        estimator.publish();
+        if (message != null)
+            latency.onDequeued(message, System.nanoTime());
+        return message;
+    }
+
+    // Takes the next message by priority, dropping expired ones along the way. Must hold the lock.
+    private ConnectionMessage dequeue() {
+        long now = System.nanoTime();
+        if (ping && estimator.pingDue(now)) {
+            ConnectionMessage ping = ConnectionMessage.obtain(Connection.DATA_PING, 8);
+            ping.buffer().putLong(0, now / 1000);
+            return ping;
+        }
+        for (int i = 0; i < class_count; i++) {
+            ArrayDeque<ConnectionMessage> queue = queues.get(i);
+            ConnectionMessage message;
+            while ((message = queue.poll()) != null) {
+                condition_sender[i].signal();
+                boolean codec_config = (message.flags & ConnectionMessage.FLAG_CODEC_CONFIG) != 0;
+                if (deadline[i] != 0 && now - message.queued > deadline[i] && !codec_config) {
+                    estimator.onExpired();
+                    if (i == CLASS_VIDEO) {
+                        video_drop_report |= !video_broken;
+                        video_broken = true;
+                    }
+                    message.recycle();
+                    counters.countDropped(1);
+                    continue;
+                }
+                if (i == CLASS_VIDEO && video_broken) {
+                    if ((message.flags & ConnectionMessage.FLAG_KEYFRAME) == 0) {
+                        message.recycle();
+                        counters.countDropped(1);
+                        continue;
+                    }
+                    // Codec config comes right before the keyframe it's for
+                    if (!codec_config)
+                        video_broken = false;
+                }
+                if (i == CLASS_VIDEO) {
+                    if (queue.isEmpty())
+                        rate_hint = RATE_UNDERFLOW;
+                    else if (queue.size() < capacity[CLASS_VIDEO] / 4)
+                        rate_hint = RATE_NORMAL;
+                }
+                boolean backlogged = false;
+                for (ArrayDeque<ConnectionMessage> j : queues)
+                    backlogged |= !j.isEmpty();
+                estimator.onDequeue(message.length, now - message.queued, backlogged, now);
+                counters.countDequeued(message);
+                return message;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return open_receiver && open_sender;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void openSender() {
+        lock.lock();
+        open_sender = true;
+        lock.unlock();
+    }
+
+    @Override
+    public void openReceiver() {
+        lock.lock();
+        open_receiver = true;
+        lock.unlock();
+        // This happens on every new connection, which may take another route than the last one
+        estimator.resetRtt();
+    }
+
+    @Override
+    public void closeSender() {
+        lock.lock();
+        try {
+            open_sender = false;
+            signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void closeReceiver() {
+        lock.lock();
+        try {
+            open_receiver = false;
+            video_broken = false;
+            video_drop_report = false;
+            for (ArrayDeque<ConnectionMessage> queue : queues) {
+                ConnectionMessage message;
+                while ((message = queue.poll()) != null)
+                    message.recycle();
+            }
+            signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock
+    private int depth() {
+        int depth = 0;
+        for (ArrayDeque<ConnectionMessage> queue : queues)
+            depth += queue.size();
+        return depth;
+    }
+
+    private void signalAll() {
+        for (Condition condition : condition_sender)
+            condition.signalAll();
+        condition_receiver.signalAll();
+    }
+
+    @Override
+    public Stats getStats() {
+        return counters.getStats();
+    }
+
+    public BandwidthEstimator getBandwidthEstimator() {
+        return estimator;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return latency;
+    }
+
+    // Only reflects the video queue, since video is the only thing that can adapt its rate
+    @Override
+    public int getRateHint() {
+        lock.lock();
+        try {
+            return rate_hint;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
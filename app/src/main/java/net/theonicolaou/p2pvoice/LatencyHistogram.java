@@ -0,0 +1,64 @@
+package net.theonicolaou.p2pvoice;
+
+// Log-linear histogram of latencies, for percentiles. Each power of two is split into 16 buckets, so
+// values are off by at most 1/16th. Single threaded.
+class LatencyHistogram {
+    private static final int sub_bits = 4;
+    private static final int sub_count = 1 << sub_bits;
+    private final long[] counts = new long[64 * sub_count];
+    private long total = 0, max = 0;
+
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[bucketOf(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    void reset() {
+        java.util.Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < sub_count)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - sub_bits;
+        return ((shift + 1) << sub_bits) + (int) ((value >>> shift) & (sub_count - 1));
+    }
+
+    // Upper bound of the values in the bucket
+    private static long valueOf(int bucket) {
+        if (bucket < sub_count)
+            return bucket;
+        int shift = (bucket >>> sub_bits) - 1;
+        long sub = (bucket & (sub_count - 1)) | sub_count;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    long getCount() {
+        return total;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long percentile(double percentile) {
+        long rank = (long) Math.ceil(total * percentile / 100), seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(valueOf(i), max);
+        }
+        return max;
+    }
+
+    // For values in nanoseconds
+    String summary() {
+        return String.format("latency (us): p50=%.1f p99=%.1f p99.9=%.1f max=%.1f n=%d",
+                percentile(50) / 1000.0, percentile(99) / 1000.0, percentile(99.9) / 1000.0, max / 1000.0, total);
+    }
+}
@@ -0,0 +1,190 @@
+package net.theonicolaou.p2pvoice;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Where the time goes between capturing audio or video on one end and playing it on the other. Frames
+// carry their capture time, and every stage they go through gets a histogram of how long they spent in
+// it. Outgoing frames are measured up to the socket write, incoming ones from the socket read to the
+// AudioTrack write or render. Stages that start on the other end go through the clock offset measured
+// with pings, and are left empty until there is one. Every interval the percentiles get logged, handed
+// to the listeners, and the histograms start over.
+public class LatencyStats {
+    public interface Listener {
+        // Called on whichever thread recorded the last frame of the interval
+        void onLatencyStats(Snapshot snapshot);
+    }
+
+    public static final int MEDIA_AUDIO = 0;
+    public static final int MEDIA_VIDEO = 1;
+    public static final int media_count = 2;
+
+    public static final int STAGE_ENCODE = 0;      // capture to the outgoing pipe
+    public static final int STAGE_QUEUE = 1;       // waiting in the outgoing pipe
+    public static final int STAGE_SEND = 2;        // socket write
+    public static final int STAGE_TRANSIT = 3;     // capture on the other end to the socket read here
+    public static final int STAGE_RECEIVE = 4;     // socket read to decoder input, incoming pipe and jitter buffer
+    public static final int STAGE_DECODE = 5;      // decoder input to AudioTrack write or render
+    public static final int STAGE_TOTAL = 6;       // capture on the other end to AudioTrack write or render
+    public static final int stage_count = 7;
+
+    private static final String TAG = "LatencyStats";
+    private static final String[] media_names = {"audio", "video"};
+    private static final String[] stage_names = {"encode", "queue", "send", "transit", "receive", "decode", "total"};
+    private static final long interval = 5000_000_000L;     // in nanoseconds
+
+    // Percentiles in microseconds, and frame counts, by [media][stage]
+    public static class Snapshot {
+        public final long[][] p50 = new long[media_count][stage_count];
+        public final long[][] p95 = new long[media_count][stage_count];
+        public final long[][] p99 = new long[media_count][stage_count];
+        public final long[][] count = new long[media_count][stage_count];
+        public long rtt;            // in microseconds
+    }
+
+    private final BandwidthEstimator estimator;
+    private final LatencyHistogram[][] histograms = new LatencyHistogram[media_count][stage_count];
+    private final List<Listener> listeners = new ArrayList<>();
+    private long interval_start = 0;
+
+    LatencyStats(BandwidthEstimator estimator) {
+        this.estimator = estimator;
+        for (int i = 0; i < media_count; i++)
+            for (int j = 0; j < stage_count; j++)
+                histograms[i][j] = new LatencyHistogram();
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    private static int mediaOf(int type) {
+        switch (type) {
+            case Connection.DATA_AUDIO:
+                return MEDIA_AUDIO;
+            case Connection.DATA_VIDEO:
+                return MEDIA_VIDEO;
+            default:
+                return -1;
+        }
+    }
+
+    // Microseconds on our clock, for a timestamp from the other end's. 0 when there's no offset yet.
+    long toLocal(long remote_timestamp) {
+        if (remote_timestamp == 0 || !estimator.isClockOffsetValid())
+            return 0;
+        return remote_timestamp - estimator.getClockOffset();
+    }
+
+    // Outgoing message went into the scheduler at queued (in nanoseconds)
+    void onQueued(int type, long timestamp, long queued) {
+        int media = mediaOf(type);
+        if (media >= 0 && timestamp != 0)
+            record(media, STAGE_ENCODE, queued / 1000 - timestamp);
+    }
+
+    // Outgoing message was taken out of the scheduler by the sending thread
+    void onDequeued(ConnectionMessage message, long now) {
+        int media = mediaOf(message.type);
+        if (media >= 0)
+            record(media, STAGE_QUEUE, (now - message.queued) / 1000);
+    }
+
+    // Outgoing message was written to the socket, which started at start (in nanoseconds)
+    void onSent(ConnectionMessage message, long start) {
+        int media = mediaOf(message.type);
+        if (media >= 0)
+            record(media, STAGE_SEND, (System.nanoTime() - start) / 1000);
+    }
+
+    // Incoming message was read off the socket, with arrival set
+    void onReceived(ConnectionMessage message) {
+        int media = mediaOf(message.type);
+        long capture = toLocal(message.timestamp);
+        if (media >= 0 && capture != 0)
+            record(media, STAGE_TRANSIT, message.arrival - capture);
+    }
+
+    // Incoming message is going into the decoder. Returns the time (in microseconds), to pass on to
+    // onRendered().
+    public long onDecoderInput(ConnectionMessage message) {
+        long now = System.nanoTime() / 1000;
+        int media = mediaOf(message.type);
+        if (media >= 0 && message.arrival != 0)
+            record(media, STAGE_RECEIVE, now - message.arrival);
+        return now;
+    }
+
+    // What came out of the decoder for a frame was played. timestamp is the frame's (from the other
+    // end), decoder_input what onDecoderInput() returned for it.
+    public void onRendered(int media, long timestamp, long decoder_input) {
+        long now = System.nanoTime() / 1000;
+        record(media, STAGE_DECODE, now - decoder_input);
+        long capture = toLocal(timestamp);
+        if (capture != 0)
+            record(media, STAGE_TOTAL, now - capture);
+    }
+
+    private void record(int media, int stage, long duration) {
+        long now = System.nanoTime();
+        Snapshot snapshot = null;
+        synchronized (this) {
+            histograms[media][stage].record(duration);
+            if (interval_start == 0)
+                interval_start = now;
+            if (now - interval_start >= interval) {
+                snapshot = takeSnapshot();
+                interval_start = now;
+            }
+        }
+        if (snapshot != null)
+            publish(snapshot);
+    }
+
+    // Must hold the lock
+    private Snapshot takeSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int i = 0; i < media_count; i++) {
+            for (int j = 0; j < stage_count; j++) {
+                LatencyHistogram histogram = histograms[i][j];
+                snapshot.p50[i][j] = histogram.percentile(50);
+                snapshot.p95[i][j] = histogram.percentile(95);
+                snapshot.p99[i][j] = histogram.percentile(99);
+                snapshot.count[i][j] = histogram.getCount();
+                histogram.reset();
+            }
+        }
+        snapshot.rtt = estimator.getRtt();
+        return snapshot;
+    }
+
+    private void publish(Snapshot snapshot) {
+        for (int i = 0; i < media_count; i++) {
+            StringBuilder line = new StringBuilder(media_names[i]).append(" latency (ms, p50/p95/p99):");
+            for (int j = 0; j < stage_count; j++) {
+                if (snapshot.count[i][j] == 0)
+                    continue;
+                line.append(' ').append(stage_names[j]).append('=')
+                        .append(snapshot.p50[i][j] / 1000).append('/')
+                        .append(snapshot.p95[i][j] / 1000).append('/')
+                        .append(snapshot.p99[i][j] / 1000);
+            }
+            Log.i(TAG, line.toString());
+        }
+
+        synchronized (listeners) {
+            for (Listener listener : listeners)
+                listener.onLatencyStats(snapshot);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.theonicolaou.p2pvoice;
+
+import android.util.Log;
+
+// Keeps incoming video in step with incoming audio. The other end stamps both with when they were
+// captured, and the audio decoder reports when audio captured at a given time comes out of the speaker
+// here, which tells when video captured at the same time should be on screen. Frames that are early
+// get held back (the codec renders them at that time), late ones are rendered right away, and only get
+// dropped when a newer frame is already decoded and waiting to replace them. Video that keeps lagging
+// behind isn't something dropping frames can fix, so audio gets held back to meet it instead, through
+// the jitter buffer's delay (see getAudioDelay()), and let go again once video catches up. While
+// there's no recent audio (the other end is quiet), video just gets rendered as it comes. The skew of
+// what gets rendered is logged every interval.
+public class LipSync {
+    private static final String TAG = "LipSync";
+    private static final long audio_stale = 2_000_000;      // in microseconds
+    private static final long hold_max = 300_000;           // in microseconds, more means the timestamps are off
+    private static final long late_max = 80_000;            // in microseconds, lip sync errors get noticeable
+    private static final long audio_delay_max = 200_000;    // in microseconds, on top of what the jitter needs
+    private static final long adjust_interval = 1000_000;   // in microseconds
+    private static final long interval = 5000_000;          // in microseconds
+
+    // Set by the audio decoder thread, read by the video decoder's
+    private volatile long audio_offset = 0;                 // audio playout minus capture
+    private volatile long audio_offset_time = 0;            // when it was last set, 0 for never
+    // Set by the video decoder thread, read by the audio decoder's
+    private volatile long audio_delay = 0;                  // in microseconds
+
+    // Video decoder thread only
+    private final LatencyHistogram skew_histogram = new LatencyHistogram();
+    private long interval_start = 0, adjust_start = 0;
+    private double skew_average = 0, lag_average = 0;
+
+    private volatile long stat_skew = 0;
+    private volatile long stat_dropped = 0, stat_held = 0, stat_rendered = 0;
+
+    LipSync() {}
+
+    // Audio captured at capture (on the other end's clock) starts playing at playout (on ours), both in
+    // microseconds
+    public void onAudioPlayout(long capture, long playout) {
+        audio_offset = playout - capture;
+        audio_offset_time = System.nanoTime() / 1000;
+    }
+
+    // How much longer than it needs to the audio decoder should hold audio back, so that it plays along
+    // with video that can't keep up with it. In microseconds.
+    public long getAudioDelay() {
+        return audio_delay;
+    }
+
+    // Whether a video frame captured at capture would be too late to keep lip sync if rendered now, so
+    // it's worth checking for a newer one first
+    public boolean isLate(long capture) {
+        long audio_time = audio_offset_time;
+        long now = System.nanoTime() / 1000;
+        return capture != 0 && audio_time != 0 && now - audio_time <= audio_stale && now - (capture + audio_offset) > late_max;
+    }
+
+    // When to render a video frame captured at capture (on the other end's clock), in microseconds
+    // (System.nanoTime() / 1000), or -1 to drop it. Only late frames with a newer one waiting get dropped.
+    public long videoRenderTime(long capture, boolean newer_waiting) {
+        long now = System.nanoTime() / 1000;
+        long audio_time = audio_offset_time;
+        if (capture == 0 || audio_time == 0 || now - audio_time > audio_stale) {
+            stat_rendered++;
+            return now;
+        }
+
+        long target = capture + audio_offset;
+        long skew = now - target;   // positive when video lags
+        long render;
+        if (skew > late_max && newer_waiting) {
+            stat_dropped++;
+            return -1;
+        } else if (skew < 0) {
+            render = Math.min(target, now + hold_max);
+            stat_held++;
+        } else {
+            render = now;
+        }
+        stat_rendered++;
+        adjustAudioDelay(skew, now);
+        record(render - target, now);
+        return render;
+    }
+
+    // Half the average lag at a time, since audio only gets stretched by a frame every few and the
+    // change takes a while to show. Video that shows up early means audio is held back for nothing.
+    private void adjustAudioDelay(long lag, long now) {
+        lag_average += (lag - lag_average) / 16;
+        if (adjust_start == 0)
+            adjust_start = now;
+        if (now - adjust_start < adjust_interval)
+            return;
+        adjust_start = now;
+        long delay = audio_delay;
+        if (lag_average > late_max / 2 || (lag_average < -late_max / 2 && delay > 0)) {
+            delay = Math.max(0, Math.min(audio_delay_max, delay + (long) lag_average / 2));
+            if (delay != audio_delay)
+                Log.d(TAG, "Holding audio back by " + delay / 1000 + "ms for video lagging " + (long) lag_average / 1000 + "ms");
+            audio_delay = delay;
+        }
+    }
+
+    private void record(long skew, long now) {
+        skew_average += (skew - skew_average) / 16;
+        stat_skew = (long) skew_average;
+        // Video can only ever be held back up to its audio, so it's the lag that matters
+        skew_histogram.record(skew);
+        if (interval_start == 0)
+            interval_start = now;
+        if (now - interval_start < interval)
+            return;
+        Log.i(TAG, "Video behind audio (ms, p50/p95/p99): " +
+                skew_histogram.percentile(50) / 1000 + "/" +
+                skew_histogram.percentile(95) / 1000 + "/" +
+                skew_histogram.percentile(99) / 1000 +
+                ", held " + stat_held + ", dropped " + stat_dropped + " of " + (stat_rendered + stat_dropped) +
+                ", audio held back " + audio_delay / 1000 + "ms");
+        skew_histogram.reset();
+        interval_start = now;
+    }
+
+    // In microseconds, averaged over the last few frames. Positive when video lags audio.
+    public long getSkew() {
+        return stat_skew;
+    }
+
+    public long getDroppedFrames() {
+        return stat_dropped;
+    }
+
+    public long getHeldFrames() {
+        return stat_held;
+    }
+}
@@ -7,7 +7,6 @@ import android.hardware.camera2.CameraAccessException;
 import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.MediaCodec;
-import android.media.MediaFormat;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
@@ -29,9 +28,11 @@ public class TestConnectionConnect extends AppCompatActivity {
     private static final String TAG = "TestConnectionConnect";
 
     private static final int port = 8798;
+    private static final int CONNECTION_STREAM = 0, CONNECTION_CHANNEL = 1, CONNECTION_DATAGRAM = 2;
+    private static final int connection_type = CONNECTION_DATAGRAM;
     private static final int bitrate_video = 1000000;
     private static final int bitrate_audio = 50000;
-    private static final String video_format = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final boolean audio_low_latency = true;
     private static final int camera_width = 1280, camera_height = 720, camera_fps = 30;
 
     private TextView bitrate_info;
@@ -42,29 +43,38 @@ public class TestConnectionConnect extends AppCompatActivity {
     private boolean started = false, connected = false, start_camera = false;
     private Connection socket;
     private VideoEncoder video_encoder;
-    private VideoDecoder video_decoder;
+    private volatile VideoDecoder video_decoder;
+    // Video codecs get set up once both ends know what the other can do
+    private CallCapabilities capabilities_local;
+    private CallCapabilities.Session session = null;           // main thread
+    private CallCapabilities.Session session_decoder = null;   // socket thread
+    private boolean session_current = false;                   // negotiated since connecting
+    private volatile int bitrate_audio_max = bitrate_audio;
     private AudioHandler audio_handler;
+    private final LipSync lip_sync = new LipSync();
     private CallCamera camera;
     private Surface encoder_surface = null;
     private AudioManager audio_manager;
-    private ConnectionMessagePipe outgoing_pipe;
+    private ConnectionPipe outgoing_pipe;
+
+    // Splits the connection's estimated bandwidth between audio and video
+    private final BandwidthEstimator.Listener bandwidth_listener = bitrate -> runOnUiThread(() -> {
+        int bitrate_audio_target = Math.min(bitrate_audio_max, bitrate / 8);
+        if (audio_handler != null)
+            audio_handler.setTargetBitrate(bitrate_audio_target);
+        if (video_encoder != null)
+            video_encoder.setTargetBitrate(bitrate - bitrate_audio_target);
+    });
 
     private final Connection.StatusListener socket_status_listener = new Connection.StatusListener() {
         @Override
         public void onConnect() {
-            Log.d(TAG, "Connected, starting video.");
+            Log.d(TAG, "Connected, sending capabilities.");
             connected = true;
-            // Socket connected, start video transmission
-            if (video_encoder != null && camera != null) {
-                if (start_camera) {
-                    video_encoder.start();
-                    if (camera.getRotation() == 90)
-                        outgoing_pipe.send(Connection.DATA_VIDEO_START_90, new byte[1]);
-                    else
-                        outgoing_pipe.send(Connection.DATA_VIDEO_START_270, new byte[1]);
-                }
-                camera.encoderReady();
-            }
+            // Video starts once the other end's capabilities are in, which can be before we get here
+            outgoing_pipe.send(Connection.DATA_CAPABILITIES, capabilities_local.toBytes());
+            if (session_current)
+                startVideo();
             if (audio_handler != null) {
                 audio_handler.startEncoder();
                 audio_handler.startDecoder();
@@ -76,6 +86,13 @@ public class TestConnectionConnect extends AppCompatActivity {
             Log.d(TAG, "Disconnected, stopping video.");
             // Socket disconnected, stop video transmission
             connected = false;
+            session_current = false;
+            // For sizing the pipes
+            Log.i(TAG, "Outgoing pipe: " + outgoing_pipe.getStats());
+            if (audio_handler != null)
+                Log.i(TAG, "Incoming audio pipe: " + audio_handler.getIncomingMessagePipe().getStats());
+            if (video_decoder != null)
+                Log.i(TAG, "Incoming video pipe: " + video_decoder.getIncomingMessagePipe().getStats());
             if (video_encoder != null && camera != null) {
                 if (start_camera)
                     video_encoder.stop();
@@ -110,6 +127,38 @@ public class TestConnectionConnect extends AppCompatActivity {
         public void onEndCall() {
             finish();
         }
+
+        @Override
+        public void onKeyframeRequest() {
+            if (video_encoder != null)
+                video_encoder.requestKeyframe();
+        }
+
+        @Override
+        public void onAudioLoss(int percent) {
+            if (audio_handler != null)
+                audio_handler.setRemoteLoss(percent);
+        }
+
+        @Override
+        public void onVideoFormat(int width, int height, int fps) {
+            if (video_decoder != null)
+                video_decoder.setFormat(width, height, fps);
+        }
+
+        @Override
+        public void onCapabilities(byte[] data) {
+            CallCapabilities remote = CallCapabilities.parse(data, data.length);
+            if (remote == null) {
+                Log.w(TAG, "Ignoring broken capabilities of size=" + data.length);
+                return;
+            }
+            CallCapabilities.Session negotiated = CallCapabilities.negotiate(capabilities_local, remote);
+            Log.i(TAG, "Negotiated " + negotiated);
+            // The other end's video start can come right after this, so the decoder has to be there by then
+            setUpDecoder(negotiated);
+            runOnUiThread(() -> onSession(negotiated));
+        }
     };
 
     private final VideoEncoder.StatsListener video_encoder_stats = new VideoEncoder.StatsListener() {
@@ -117,6 +166,22 @@ public class TestConnectionConnect extends AppCompatActivity {
         public void onBitrateChange(int bitrate) {
             bitrate_info.setText(getString(R.string.bitrate_display, bitrate/1000));
         }
+
+        @Override
+        public void onFormatChange(int width, int height, int fps) {
+            if (video_encoder == null || camera == null)
+                return;
+            // The camera's session goes along with the encoder's input surface size
+            video_encoder.setFormat(width, height, fps);
+            camera.restartSession();
+        }
+    };
+
+    private final AudioHandler.OutputStatsListener audio_output_stats = new AudioHandler.OutputStatsListener() {
+        @Override
+        public void onOutputStats(int latency, int buffer_size, int underruns, int drift) {
+            Log.d(TAG, "Audio output: latency=" + latency + "ms, buffer=" + buffer_size + "ms, underruns=" + underruns + ", drift=" + drift + "ppm");
+        }
     };
 
     private final ActivityResultLauncher<String> permission_launcher =
@@ -164,11 +229,11 @@ public class TestConnectionConnect extends AppCompatActivity {
                     video_encoder.stop();
                     camera.nextCamera();
                     if (connected && start_camera) {
-                        outgoing_pipe.send(Connection.DATA_VIDEO_STOP, new byte[1]);
+                        outgoing_pipe.send(Connection.DATA_VIDEO_STOP, new byte[0]);
                         if (camera.getRotation() == 90)
-                            outgoing_pipe.send(Connection.DATA_VIDEO_START_90, new byte[1]);
+                            outgoing_pipe.send(Connection.DATA_VIDEO_START_90, new byte[0]);
                         else
-                            outgoing_pipe.send(Connection.DATA_VIDEO_START_270, new byte[1]);
+                            outgoing_pipe.send(Connection.DATA_VIDEO_START_270, new byte[0]);
                         video_encoder.start();
                     }
                 } catch (CameraAccessException e) {
@@ -184,9 +249,9 @@ public class TestConnectionConnect extends AppCompatActivity {
                     camera.start();
                     if (connected) {
                         if (camera.getRotation() == 90)
-                            outgoing_pipe.send(Connection.DATA_VIDEO_START_90, new byte[1]);
+                            outgoing_pipe.send(Connection.DATA_VIDEO_START_90, new byte[0]);
                         else
-                            outgoing_pipe.send(Connection.DATA_VIDEO_START_270, new byte[1]);
+                            outgoing_pipe.send(Connection.DATA_VIDEO_START_270, new byte[0]);
                         video_encoder.start();
                     }
                     preview_local.setVisibility(View.VISIBLE);
@@ -194,7 +259,7 @@ public class TestConnectionConnect extends AppCompatActivity {
                     camera.stop();
                     if (connected) {
                         video_encoder.stop();
-                        outgoing_pipe.send(Connection.DATA_VIDEO_STOP, new byte[1]);
+                        outgoing_pipe.send(Connection.DATA_VIDEO_STOP, new byte[0]);
                     }
                     preview_local.setVisibility(View.INVISIBLE);
                 }
@@ -222,7 +287,7 @@ public class TestConnectionConnect extends AppCompatActivity {
         });
 
         button_call_end.setOnClickListener(view -> {
-            outgoing_pipe.send(Connection.DATA_END_CALL, new byte[1]);
+            outgoing_pipe.send(Connection.DATA_END_CALL, new byte[0]);
             finish();
         });
 
@@ -242,43 +307,27 @@ public class TestConnectionConnect extends AppCompatActivity {
             finish();
 
         // Init network socket handler
-        if (is_server)
+        if (connection_type == CONNECTION_DATAGRAM)
+            socket = new ConnectionDatagram(this, socket_status_listener, host_address, port, is_server);
+        else if (connection_type == CONNECTION_CHANNEL)
+            socket = new ConnectionChannel(this, socket_status_listener, host_address, port, is_server);
+        else if (is_server)
             socket = new ConnectionServer(this, socket_status_listener, host_address, port);
         else
             socket = new ConnectionClient(this, socket_status_listener, host_address, port);
         outgoing_pipe = socket.getOutgoingMessagePipe();
+        socket.getBandwidthEstimator().addListener(bandwidth_listener);
 
-        // Prepare encoder's input
-        if (VideoEncoder.checkInputSurfaceCompatibility(video_format, camera_width, camera_height)) {
+        // Prepare encoder's input, the codecs themselves get picked along with the other end
+        capabilities_local = CallCapabilities.local(camera_width, camera_height, camera_fps, bitrate_audio);
+        if (!capabilities_local.video.isEmpty()) {
             Log.d(TAG, "Encoder supports input surfaces");
             encoder_surface = MediaCodec.createPersistentInputSurface();
         } else {
-            Log.d(TAG, "Encoder doesn't support input surfaces. This could work using a workaround, but it isn't implemented currently.");
+            Log.d(TAG, "No encoder supports input surfaces. This could work using a workaround, but it isn't implemented currently.");
             Toast.makeText(this, R.string.test_call_media_error, Toast.LENGTH_SHORT).show();
         }
 
-        if (encoder_surface != null) {
-            // Initialize video encoder
-            try {
-                video_encoder = new VideoEncoder(video_format, camera_width, camera_height, camera_fps, bitrate_video, encoder_surface, video_encoder_stats);
-                video_encoder.setOutgoingMessagePipe(outgoing_pipe);
-            } catch (VideoEncoder.UnsupportedFormat e) {
-                Toast.makeText(this, R.string.test_call_video_encode_unsupported, Toast.LENGTH_SHORT).show();
-            } catch (VideoEncoder.EncoderFailed e) {
-                Toast.makeText(this, R.string.test_call_video_encode_failed, Toast.LENGTH_SHORT).show();
-            }
-        }
-
-        // Initialize video decoder
-        try {
-            video_decoder = new VideoDecoder(video_format, camera_width, camera_height, camera_fps, 30, preview_remote.getHolder());
-            socket.setIncomingMessagePipe(Connection.DATA_VIDEO, video_decoder.getIncomingMessagePipe());
-        } catch (VideoDecoder.DecoderFailed e) {
-            Toast.makeText(this, R.string.test_call_video_decode_failed, Toast.LENGTH_SHORT).show();
-        } catch (VideoDecoder.UnsupportedFormat e) {
-            Toast.makeText(this, R.string.test_call_video_decode_unsupported, Toast.LENGTH_SHORT).show();
-        }
-
         // Audio handler will be initialized later after getting mic permissions
 
         // TEST
@@ -317,6 +366,69 @@ public class TestConnectionConnect extends AppCompatActivity {
             audio_handler.release();
     }
 
+    // Called on the socket's thread
+    private void setUpDecoder(CallCapabilities.Session negotiated) {
+        if (negotiated.sameVideo(session_decoder))
+            return;
+        session_decoder = negotiated;
+        if (video_decoder != null) {
+            video_decoder.release();
+            video_decoder = null;
+        }
+        if (negotiated.mime == null)
+            return;
+
+        try {
+            VideoDecoder decoder = new VideoDecoder(negotiated.mime, negotiated.width, negotiated.height, negotiated.fps, 30, preview_remote.getHolder());
+            socket.setIncomingMessagePipe(Connection.DATA_VIDEO, decoder.getIncomingMessagePipe());
+            decoder.setOutgoingMessagePipe(outgoing_pipe);
+            decoder.setLatencyStats(socket.getLatencyStats());
+            decoder.setLipSync(lip_sync);
+            video_decoder = decoder;
+        } catch (VideoDecoder.DecoderFailed e) {
+            runOnUiThread(() -> Toast.makeText(this, R.string.test_call_video_decode_failed, Toast.LENGTH_SHORT).show());
+        } catch (VideoDecoder.UnsupportedFormat e) {
+            runOnUiThread(() -> Toast.makeText(this, R.string.test_call_video_decode_unsupported, Toast.LENGTH_SHORT).show());
+        }
+    }
+
+    private void onSession(CallCapabilities.Session negotiated) {
+        bitrate_audio_max = negotiated.audio_bitrate;
+        if (!negotiated.sameVideo(session)) {
+            if (video_encoder != null) {
+                video_encoder.release();
+                video_encoder = null;
+            }
+            if (encoder_surface != null && negotiated.mime != null) {
+                try {
+                    video_encoder = new VideoEncoder(negotiated.mime, negotiated.width, negotiated.height, negotiated.fps, bitrate_video, negotiated.profile_level, encoder_surface, video_encoder_stats);
+                    video_encoder.setOutgoingMessagePipe(outgoing_pipe);
+                } catch (VideoEncoder.UnsupportedFormat e) {
+                    Toast.makeText(this, R.string.test_call_video_encode_unsupported, Toast.LENGTH_SHORT).show();
+                } catch (VideoEncoder.EncoderFailed e) {
+                    Toast.makeText(this, R.string.test_call_video_encode_failed, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }
+        session = negotiated;
+        session_current = true;
+        if (connected)
+            startVideo();
+    }
+
+    private void startVideo() {
+        if (video_encoder != null && camera != null) {
+            if (start_camera) {
+                video_encoder.start();
+                if (camera.getRotation() == 90)
+                    outgoing_pipe.send(Connection.DATA_VIDEO_START_90, new byte[0]);
+                else
+                    outgoing_pipe.send(Connection.DATA_VIDEO_START_270, new byte[0]);
+            }
+            camera.encoderReady();
+        }
+    }
+
     private boolean acquirePermission(String permission) {
         if (ContextCompat.checkSelfPermission(this, permission) == PackageManager.PERMISSION_GRANTED)
             return true;
@@ -355,8 +467,11 @@ public class TestConnectionConnect extends AppCompatActivity {
         // Initialize audio encoder with mic permissions
         if (audio_handler == null) {
             try {
-                audio_handler = new AudioHandler(bitrate_audio, audio_manager);
+                audio_handler = new AudioHandler(bitrate_audio, audio_manager, audio_low_latency);
+                audio_handler.setOutputStatsListener(audio_output_stats);
                 audio_handler.setOutgoingMessagePipe(outgoing_pipe);
+                audio_handler.setLatencyStats(socket.getLatencyStats());
+                audio_handler.setLipSync(lip_sync);
                 socket.setIncomingMessagePipe(Connection.DATA_AUDIO, audio_handler.getIncomingMessagePipe());
             } catch (AudioHandler.MicFailed e) {
                 Toast.makeText(this, R.string.test_call_audio_mic_failed, Toast.LENGTH_SHORT).show();
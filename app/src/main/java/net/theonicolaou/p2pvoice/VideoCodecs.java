@@ -0,0 +1,199 @@
+package net.theonicolaou.p2pvoice;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// What video codecs this device has and what they can do. Building and walking a MediaCodecList asks
+// every codec for its capabilities, which is slow enough to show in call setup, so it's only done once
+// per process and the picks are cached. Hardware codecs win over software ones, and among those the
+// ones that can run in low latency mode win.
+public class VideoCodecs {
+    public static class Codec {
+        public final String name, mime;
+        public final boolean encoder, hardware, low_latency;
+        // Pairs of profile and the highest level it's supported at
+        public final int[] profile_levels;
+        private final MediaCodecInfo.VideoCapabilities video;
+
+        private Codec(MediaCodecInfo info, String mime, MediaCodecInfo.CodecCapabilities capabilities) {
+            this.name = info.getName();
+            this.mime = mime;
+            this.encoder = info.isEncoder();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+                this.hardware = info.isHardwareAccelerated();
+            else
+                this.hardware = !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+            this.low_latency = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R &&
+                    capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency);
+            this.video = capabilities.getVideoCapabilities();
+
+            HashMap<Integer, Integer> levels = new HashMap<>();
+            if (capabilities.profileLevels != null)
+                for (MediaCodecInfo.CodecProfileLevel profile_level : capabilities.profileLevels)
+                    levels.merge(profile_level.profile, profile_level.level, Math::max);
+            profile_levels = new int[levels.size() * 2];
+            int i = 0;
+            for (HashMap.Entry<Integer, Integer> entry : levels.entrySet()) {
+                profile_levels[i++] = entry.getKey();
+                profile_levels[i++] = entry.getValue();
+            }
+        }
+
+        private boolean supports(int width, int height, int fps) {
+            if (video == null)
+                return false;
+            return fps > 0 ? video.areSizeAndRateSupported(width, height, fps) : video.isSizeSupported(width, height);
+        }
+
+        private int score() {
+            return (hardware ? 2 : 0) + (low_latency ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + mime + (hardware ? ", hardware" : ", software") + (low_latency ? ", low latency" : "") + ")";
+        }
+    }
+
+    private static final String TAG = "VideoCodecs";
+    // Profiles worth asking for, best first. Constrained ones leave out B-frames, which only add delay.
+    // The others can only be told not to use them from Q on (KEY_MAX_B_FRAMES), so before that it's only
+    // the ones that can't have them.
+    private static final HashMap<String, int[]> profile_preference = new HashMap<>();
+    private static final HashMap<String, int[]> profile_preference_no_b_frames = new HashMap<>();
+    static {
+        profile_preference.put(MediaFormat.MIMETYPE_VIDEO_AVC, new int[] {
+                MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedHigh,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+        });
+        profile_preference.put(MediaFormat.MIMETYPE_VIDEO_HEVC, new int[] {
+                MediaCodecInfo.CodecProfileLevel.HEVCProfileMain,
+        });
+        profile_preference_no_b_frames.put(MediaFormat.MIMETYPE_VIDEO_AVC, new int[] {
+                MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedHigh,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+        });
+    }
+
+    private static List<Codec> codecs = null;
+    private static final HashMap<String, Codec> picked = new HashMap<>();
+
+    private VideoCodecs() {}
+
+    private static List<Codec> codecs() {
+        if (codecs != null)
+            return codecs;
+        long start = System.nanoTime();
+        codecs = new ArrayList<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            // Aliases are the same codec again under an old name
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && info.isAlias())
+                continue;
+            for (String mime : info.getSupportedTypes()) {
+                if (!mime.startsWith("video/"))
+                    continue;
+                MediaCodecInfo.CodecCapabilities capabilities;
+                try {
+                    capabilities = info.getCapabilitiesForType(mime);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                // Encoder input only ever comes from a surface here
+                if (info.isEncoder() && !supportsSurfaceInput(capabilities))
+                    continue;
+                codecs.add(new Codec(info, mime, capabilities));
+            }
+        }
+        Log.d(TAG, "Found " + codecs.size() + " video codecs in " + (System.nanoTime() - start) / 1000000 + "ms");
+        return codecs;
+    }
+
+    private static boolean supportsSurfaceInput(MediaCodecInfo.CodecCapabilities capabilities) {
+        if (capabilities.colorFormats == null)
+            return false;
+        for (int color_format : capabilities.colorFormats)
+            if (color_format == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+                return true;
+        return false;
+    }
+
+    // Best encoder taking input from a surface for the given format, or null if there isn't one. fps can
+    // be 0 to only check the size.
+    public static synchronized Codec findEncoder(String mime, int width, int height, int fps) {
+        return find(true, mime, width, height, fps);
+    }
+
+    // Best decoder for the given format, or null if there isn't one. fps can be 0 to only check the size.
+    public static synchronized Codec findDecoder(String mime, int width, int height, int fps) {
+        return find(false, mime, width, height, fps);
+    }
+
+    private static Codec find(boolean encoder, String mime, int width, int height, int fps) {
+        String key = (encoder ? "encoder " : "decoder ") + mime + " " + width + "x" + height + "@" + fps;
+        if (picked.containsKey(key))
+            return picked.get(key);
+
+        // Ties go to whichever the device lists first, which is how it says what it prefers
+        Codec best = null;
+        for (Codec codec : codecs()) {
+            if (codec.encoder != encoder || !codec.mime.equals(mime) || !codec.supports(width, height, fps))
+                continue;
+            if (best == null || codec.score() > best.score())
+                best = codec;
+        }
+        Log.i(TAG, "Picked " + best + " for " + key);
+        picked.put(key, best);
+        return best;
+    }
+
+    // Mimes this device can both encode and decode at the given size, in the order the device lists them
+    public static synchronized List<String> getMimes(int width, int height, int fps) {
+        List<String> mimes = new ArrayList<>();
+        for (Codec codec : codecs())
+            if (codec.encoder && !mimes.contains(codec.mime) &&
+                    find(true, codec.mime, width, height, fps) != null && find(false, codec.mime, width, height, fps) != null)
+                mimes.add(codec.mime);
+        return mimes;
+    }
+
+    // The best profile an encoder for mime with the given profiles has, that the decoder on the other end
+    // can also handle, and the highest level they both do it at, as {profile, level}. Without the other
+    // end's profiles (null), it's just the encoder's best. Returns null when there's nothing worth asking
+    // for over the encoder's default.
+    public static int[] pickProfileLevel(String mime, int[] encoder_profile_levels, int[] remote_profile_levels) {
+        return pickProfileLevel(mime, encoder_profile_levels, remote_profile_levels, Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q);
+    }
+
+    // b_frames_off: whether the encoder can be told not to use B-frames
+    static int[] pickProfileLevel(String mime, int[] encoder_profile_levels, int[] remote_profile_levels, boolean b_frames_off) {
+        int[] preference = (b_frames_off ? profile_preference : profile_preference_no_b_frames).get(mime);
+        if (preference == null)
+            return null;
+        for (int profile : preference) {
+            int level = levelOf(encoder_profile_levels, profile);
+            if (remote_profile_levels != null)
+                level = Math.min(level, levelOf(remote_profile_levels, profile));
+            if (level > 0)
+                return new int[] {profile, level};
+        }
+        return null;
+    }
+
+    private static int levelOf(int[] profile_levels, int profile) {
+        for (int i = 0; i + 1 < profile_levels.length; i += 2)
+            if (profile_levels[i] == profile)
+                return profile_levels[i + 1];
+        return 0;
+    }
+}
@@ -2,10 +2,10 @@ package net.theonicolaou.p2pvoice;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -14,23 +14,65 @@ import androidx.annotation.NonNull;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VideoDecoder {
     public static class UnsupportedFormat extends Exception {}
     public static class DecoderFailed extends Exception {}
 
     private static final String TAG = "VideoDecoder";
+    private static final long keyframe_request_interval = 250;  // in milliseconds
+    private static final int frames_in_flight_max = 32;         // must be a power of 2
+    private static final int input_buffers_max = 64;            // codecs tend to have a handful
 
     private final MediaCodec decoder;
     private HandlerThread thread;
     private final MediaFormat format;
     private final SurfaceHolder output_surface;
-    private long timestamp = 0;
-    private final long timestamp_interval;
+    private final Handler main_thread = new Handler(Looper.getMainLooper());
+    // For frames that come without a capture timestamp
+    private long timestamp_fallback = 0;
+    private long timestamp_interval;
+    // Presentation timestamps, capture timestamps and decoder input times of the last frames that went
+    // into the decoder, by frame number. Usually the presentation timestamp is the capture timestamp.
+    private final long[] frame_pts = new long[frames_in_flight_max];
+    private final long[] frame_timestamp = new long[frames_in_flight_max];
+    private final long[] frame_decoder_input = new long[frames_in_flight_max];
+    private int frame_number = 0;
+    // The decoder forgets the last codec config whenever it's restarted, but the other end only sends it
+    // once, so it's kept here to be fed again first thing
+    private byte[] codec_config = null;
+    private boolean codec_config_pending = false;
+    private volatile LatencyStats latency_stats = null;
+    private volatile LipSync lip_sync = null;
     private final ConnectionMessagePipe pipe_in;
+    private ConnectionPipe pipe_out = null;
+    private int sequence_expected;
+    private boolean sequence_valid = false;
+    private volatile boolean keyframe_needed = false;
+    private long keyframe_request_last = 0;
     private boolean start_requested = false, released = false;
     private boolean started = false, surface_ready, eof_sent = false;
+    // Input buffers the codec handed over that are still waiting for a frame. Only ever fed from the
+    // codec's thread, so a quiet network doesn't hold up the output callbacks queued behind it.
+    private final int[] free_inputs = new int[input_buffers_max];
+    private int free_input_first = 0, free_input_count = 0;
+    private volatile Handler handler = null;
+    private final AtomicBoolean feed_posted = new AtomicBoolean();
+    private final Runnable feed_input = this::feedInput;
     private int rotation = 270;
+    // Starting, stopping and restarting for a new format can come from different threads. Never taken by
+    // the codec's thread, which they wait for.
+    private final Object control_lock = new Object();
+    // A late frame waiting to see whether a newer one is already decoded, -1 for none. Codec thread only.
+    private int late_index = -1, late_slot;
+    private final Runnable render_late = () -> {
+        if (late_index >= 0) {
+            render(late_index, late_slot, false);
+            late_index = -1;
+        }
+    };
 
     private final MediaCodec.Callback decoder_callback = new MediaCodec.Callback() {
         @Override
@@ -38,43 +80,33 @@ public class VideoDecoder {
             // Ignore anything after an EOF
             if (eof_sent)
                 return;
-
-            // Warning: holding onto this buffer may stall the decoder
-            ConnectionMessage frame;
-            // Grab frame from queue
-            frame = pipe_in.receive();
-
-            if (frame == null) {
-                // EOS, stopping
-                eof_sent = true;
-                decoder.queueInputBuffer(i, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            } else {
-                if (frame.type != Connection.DATA_VIDEO) {
-                    Log.e(TAG, "Received frame of wrong message type " + frame.type);
-                    decoder.queueInputBuffer(i, 0, 0, 0, 0);
-                    return;
-                }
-                // Put it into the decoder's buffer
-                ByteBuffer buffer = decoder.getInputBuffer(i);
-                if (buffer != null) {
-                    buffer.put(frame.data);
-                    try {
-                        decoder.queueInputBuffer(i, 0, frame.data.length, timestamp, 0);
-                    } catch (IllegalStateException e) {
-                        Log.d(TAG, "onInputBufferAvailable: IllegalStateException: " + e.getMessage());
-                        eof_sent = true;
-                        thread.quit();
-                    }
-                    timestamp += timestamp_interval;
-                }
+            if (free_input_count == free_inputs.length) {
+                Log.e(TAG, "More input buffers than expected, dropping " + i);
+                return;
             }
+            free_inputs[(free_input_first + free_input_count++) % free_inputs.length] = i;
+            feedInput();
         }
 
         @Override
         public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int i, @NonNull MediaCodec.BufferInfo bufferInfo) {
+            // Whatever was held back for being late has a newer frame to replace it now
+            if (late_index >= 0) {
+                handler.removeCallbacks(render_late);
+                render(late_index, late_slot, true);
+                late_index = -1;
+            }
             if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
-                // Tell decoder to render the output frame
-                mediaCodec.releaseOutputBuffer(i, true);
+                int slot = findFrame(bufferInfo.presentationTimeUs);
+                LipSync lip_sync = VideoDecoder.this.lip_sync;
+                if (lip_sync != null && slot >= 0 && lip_sync.isLate(frame_timestamp[slot])) {
+                    // Any newer frame that's already decoded has its callback queued ahead of this
+                    late_index = i;
+                    late_slot = slot;
+                    handler.post(render_late);
+                    return;
+                }
+                render(i, slot, false);
             } else {
                 // EOS, stop thread
                 mediaCodec.releaseOutputBuffer(i, false);
@@ -96,6 +128,137 @@ public class VideoDecoder {
         }
     };
 
+    // Renders along with the audio captured at the same time, or right away without sync. Codec thread only.
+    private void render(int i, int slot, boolean newer_waiting) {
+        long timestamp = slot >= 0 ? frame_timestamp[slot] : 0;
+        LipSync lip_sync = this.lip_sync;
+        long render_time = lip_sync != null ? lip_sync.videoRenderTime(timestamp, newer_waiting) : 0;
+        if (render_time < 0) {
+            decoder.releaseOutputBuffer(i, false);
+            return;
+        } else if (render_time > 0) {
+            decoder.releaseOutputBuffer(i, render_time * 1000);
+        } else {
+            decoder.releaseOutputBuffer(i, true);
+        }
+        LatencyStats latency_stats = this.latency_stats;
+        if (latency_stats != null && slot >= 0 && frame_decoder_input[slot] != 0)
+            latency_stats.onRendered(LatencyStats.MEDIA_VIDEO, timestamp, frame_decoder_input[slot]);
+    }
+
+    // Fills the free input buffers with whatever frames are waiting, without waiting for more. Codec
+    // thread only, gets called again when a buffer frees up or a frame comes in.
+    private void feedInput() {
+        feed_posted.set(false);
+        while (free_input_count > 0 && !eof_sent) {
+            int i = free_inputs[free_input_first];
+            if (codec_config_pending) {
+                ByteBuffer buffer = decoder.getInputBuffer(i);
+                if (buffer != null) {
+                    buffer.put(codec_config);
+                    decoder.queueInputBuffer(i, 0, codec_config.length, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                    codec_config_pending = false;
+                    takeFreeInput();
+                    continue;
+                }
+            }
+
+            ConnectionMessage frame = pipe_in.poll();
+            if (frame == null) {
+                if (!pipe_in.isOpen()) {
+                    // EOS, stopping
+                    eof_sent = true;
+                    takeFreeInput();
+                    decoder.queueInputBuffer(i, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                }
+                return;
+            }
+            if (frame.type != Connection.DATA_VIDEO) {
+                Log.e(TAG, "Received frame of wrong message type " + frame.type);
+                frame.recycle();
+                continue;
+            }
+            // Skipped frames leave the input buffer where it was, for the next one
+            if (!decodable(frame)) {
+                frame.recycle();
+                continue;
+            }
+            takeFreeInput();
+            queueFrame(i, frame);
+        }
+    }
+
+    private void takeFreeInput() {
+        free_input_first = (free_input_first + 1) % free_inputs.length;
+        free_input_count--;
+    }
+
+    // Anything after a missing frame is garbage until the next keyframe, so those are skipped instead of
+    // being decoded into a smeared picture, and one gets asked for until it comes
+    private boolean decodable(ConnectionMessage frame) {
+        if (sequence_valid && frame.sequence != sequence_expected) {
+            Log.d(TAG, "Missing frames " + sequence_expected + " to " + (frame.sequence - 1));
+            keyframe_needed = true;
+        }
+        sequence_expected = frame.sequence + 1;
+        sequence_valid = true;
+        if (!keyframe_needed)
+            return true;
+        if ((frame.flags & ConnectionMessage.FLAG_CODEC_CONFIG) != 0)
+            return true;
+        if ((frame.flags & ConnectionMessage.FLAG_KEYFRAME) != 0) {
+            keyframe_needed = false;
+            return true;
+        }
+        requestKeyframe();
+        return false;
+    }
+
+    private void queueFrame(int i, ConnectionMessage frame) {
+        // Put it into the decoder's buffer
+        ByteBuffer buffer = decoder.getInputBuffer(i);
+        if (buffer == null) {
+            frame.recycle();
+            return;
+        }
+        int size = frame.length, flags = 0;
+        long pts;
+        if ((frame.flags & ConnectionMessage.FLAG_CODEC_CONFIG) != 0) {
+            codec_config = Arrays.copyOf(frame.data, size);
+            flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            pts = 0;
+        } else {
+            // Capture timestamps are as good as presentation timestamps, frame rate and all
+            if (frame.timestamp != 0) {
+                pts = frame.timestamp;
+            } else {
+                pts = timestamp_fallback;
+                timestamp_fallback += timestamp_interval;
+            }
+            int slot = frame_number++ & (frames_in_flight_max - 1);
+            LatencyStats latency_stats = this.latency_stats;
+            frame_pts[slot] = pts;
+            frame_timestamp[slot] = frame.timestamp;
+            frame_decoder_input[slot] = latency_stats != null ? latency_stats.onDecoderInput(frame) : 0;
+        }
+        buffer.put(frame.data, 0, size);
+        frame.recycle();
+        try {
+            decoder.queueInputBuffer(i, 0, size, pts, flags);
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "queueFrame: IllegalStateException: " + e.getMessage());
+            eof_sent = true;
+            thread.quit();
+        }
+    }
+
+    // Called on the network thread when a frame comes in, and when the pipe gets closed
+    private void onFrameReceivable() {
+        Handler handler = this.handler;
+        if (handler != null && !feed_posted.getAndSet(true))
+            handler.post(feed_input);
+    }
+
     private final SurfaceHolder.Callback surface_callback = new SurfaceHolder.Callback() {
         @Override
         public void surfaceCreated(@NonNull SurfaceHolder surfaceHolder) {
@@ -121,9 +284,8 @@ public class VideoDecoder {
         Log.d(TAG, "Initialized with mime=" + mime + " width=" + width + " height=" + height + " fps=" + fps + " queue_capacity=" + queue_capacity);
         this.timestamp_interval = 1000000/fps; // microseconds
         this.output_surface = output_surface;
-        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
         format = MediaFormat.createVideoFormat(mime, width, height);
-        String codec = list.findDecoderForFormat(format);
+        VideoCodecs.Codec codec = VideoCodecs.findDecoder(mime, width, height, fps);
         if (codec == null) {
             throw new UnsupportedFormat();
         }
@@ -132,58 +294,83 @@ public class VideoDecoder {
         format.setInteger(MediaFormat.KEY_CAPTURE_RATE, fps);
         format.setInteger(MediaFormat.KEY_PUSH_BLANK_BUFFERS_ON_STOP, 1);
         format.setInteger(MediaFormat.KEY_ROTATION, rotation);
+        // Real time, and in low latency mode where there is one, since decoders are otherwise free to sit
+        // on a few frames before they output anything
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        if (codec.low_latency)
+            format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
 
         try {
-            decoder = MediaCodec.createByCodecName(codec);
+            decoder = MediaCodec.createByCodecName(codec.name);
         } catch (IOException e) {
             throw new DecoderFailed();
         }
 
-        output_surface.setFixedSize(width, height);
+        // Resizing lays out the view, which only the main thread may do, and this can be created on the
+        // socket's thread
+        main_thread.post(() -> output_surface.setFixedSize(width, height));
         Surface surface_check = output_surface.getSurface();
         output_surface.addCallback(surface_callback);
         surface_ready = (surface_check != null) && surface_check.isValid();
-        pipe_in = new ConnectionMessagePipe(queue_capacity, true);
+        // Drops whole runs of frames that depend on each other when full, so nothing broken gets decoded
+        pipe_in = new ConnectionMessagePipe(queue_capacity, this::requestKeyframe);
+        pipe_in.setOnReceivable(this::onFrameReceivable);
     }
 
     private void startIfReady() {
-        if (started || !start_requested || !surface_ready)
-            return;
-        if (released) {
-            Log.e(TAG, "Can't start, resources were released");
-            return;
-        }
+        synchronized (control_lock) {
+            if (started || !start_requested || !surface_ready)
+                return;
+            if (released) {
+                Log.e(TAG, "Can't start, resources were released");
+                return;
+            }
 
-        Log.i(TAG, "Starting");
-        pipe_in.openReceiver();
-        eof_sent = false;
-        timestamp = 0;
-        thread = new HandlerThread(TAG);
-        thread.start();
-        Handler handler = new Handler(thread.getLooper());
-        decoder.setCallback(decoder_callback, handler);
-        decoder.configure(format, output_surface.getSurface(), null, 0);
-        decoder.start();
-        started = true;
-        Log.i(TAG, "Start sequence finished");
+            Log.i(TAG, "Starting");
+            pipe_in.openReceiver();
+            eof_sent = false;
+            timestamp_fallback = 0;
+            frame_number = 0;
+            Arrays.fill(frame_pts, -1);
+            codec_config_pending = codec_config != null;
+            // Whatever frames come first, they probably depend on one we never decoded
+            sequence_valid = false;
+            keyframe_request_last = 0;
+            keyframe_needed = true;
+            free_input_first = 0;
+            free_input_count = 0;
+            late_index = -1;
+            feed_posted.set(false);
+            thread = new HandlerThread(TAG);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            decoder.setCallback(decoder_callback, handler);
+            decoder.configure(format, output_surface.getSurface(), null, 0);
+            decoder.start();
+            started = true;
+            Log.i(TAG, "Start sequence finished");
+        }
     }
 
     private void stopIfUnready() {
-        if (!started)
-            return;
+        synchronized (control_lock) {
+            if (!started)
+                return;
 
-        Log.i(TAG, "Stopping");
-        pipe_in.closeReceiver();  // Should send an EOS to the codec
-        try {
-            thread.join();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        decoder.stop();
-        decoder.reset();
+            Log.i(TAG, "Stopping");
+            pipe_in.closeReceiver();  // Should send an EOS to the codec
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            handler = null;
+            decoder.stop();
+            decoder.reset();
 
-        started = false;
-        Log.i(TAG, "Stop sequence finished");
+            started = false;
+            Log.i(TAG, "Stop sequence finished");
+        }
     }
 
     public void start() {
@@ -212,6 +399,67 @@ public class VideoDecoder {
         return pipe_in;
     }
 
+    // Where keyframe requests go
+    public void setOutgoingMessagePipe(ConnectionPipe pipe) {
+        this.pipe_out = pipe;
+    }
+
+    // Where decoding and rendering delays of incoming frames get recorded
+    public void setLatencyStats(LatencyStats latency_stats) {
+        this.latency_stats = latency_stats;
+    }
+
+    // Slot of the frame that went into the decoder with the given presentation timestamp, or -1 if it's
+    // not among the last ones
+    private int findFrame(long pts) {
+        for (int i = 0; i < frames_in_flight_max; i++) {
+            int slot = (frame_number - 1 - i) & (frames_in_flight_max - 1);
+            if (frame_pts[slot] == pts)
+                return slot;
+        }
+        return -1;
+    }
+
+    // What renders get scheduled against, so video stays in step with audio
+    public void setLipSync(LipSync lip_sync) {
+        this.lip_sync = lip_sync;
+    }
+
+    // Requests that come too soon after the previous one are held back, and go out with a later frame
+    // that still can't be decoded. Called on the codec's thread, or on the connection's thread when the
+    // pipe dropped frames.
+    private synchronized void requestKeyframe() {
+        keyframe_needed = true;
+        long now = System.nanoTime() / 1000000;
+        if (pipe_out == null || (keyframe_request_last != 0 && now - keyframe_request_last < keyframe_request_interval))
+            return;
+        keyframe_request_last = now;
+        pipe_out.send(Connection.DATA_KEYFRAME_REQUEST, new byte[0]);
+    }
+
+    // The other end's encoder moved to another picture size or frame rate. Called on whichever thread the
+    // video comes in on, right before the first frame of the new size, which may not be the one start()
+    // and stop() get called on. A running decoder gets restarted, which feeds it the codec config it
+    // needs and asks for a keyframe.
+    public void setFormat(int width, int height, int fps) {
+        synchronized (control_lock) {
+            if (format.getInteger(MediaFormat.KEY_WIDTH) == width && format.getInteger(MediaFormat.KEY_HEIGHT) == height &&
+                    format.getInteger(MediaFormat.KEY_FRAME_RATE) == fps)
+                return;
+            Log.d(TAG, "Changing format to " + width + "x" + height + "@" + fps);
+            format.setInteger(MediaFormat.KEY_WIDTH, width);
+            format.setInteger(MediaFormat.KEY_HEIGHT, height);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+            format.setInteger(MediaFormat.KEY_CAPTURE_RATE, fps);
+            timestamp_interval = 1000000/fps;
+            main_thread.post(() -> output_surface.setFixedSize(width, height));
+            if (started) {
+                stopIfUnready();
+                startIfReady();
+            }
+        }
+    }
+
     public void setRotation(int rotation) {
         format.setInteger(MediaFormat.KEY_ROTATION, rotation);
     }
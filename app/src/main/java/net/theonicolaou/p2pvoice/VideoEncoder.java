@@ -2,11 +2,13 @@ package net.theonicolaou.p2pvoice;
 
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -21,43 +23,59 @@ public class VideoEncoder {
 
     public abstract static class StatsListener {
         public abstract void onBitrateChange(int bitrate);
+        // Wants to move to another rung of the ladder, see setFormat()
+        public abstract void onFormatChange(int width, int height, int fps);
     }
 
     private static final String TAG = "VideoEncoder";
-    private static final MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-    private static final int min_bitrate = 400000, max_bitrate = 6000000, bitrate_step = 100000;
+    private static final int min_bitrate = 150000, max_bitrate = 6000000;
+    private static final int bitrate_tolerance = 20;    // ignore target changes smaller than 1/20th
+    // Keyframes are mostly sent on request, so they can be far apart
+    private static final int keyframe_interval = 60;    // in seconds
+    private static final long keyframe_request_interval = 500;  // in milliseconds, between forced keyframes
+    private static final long capture_delay_max = 1000_000;     // in microseconds, from capture to encoder output
+    // Once there isn't much bitrate to go around, a smaller picture looks better than a blocky big one,
+    // and takes less to encode and decode. Width, height, fps, and the lowest bitrate it looks good at.
+    private static final int[][] ladder = {
+            {1280, 720, 30, 1200_000},
+            {960, 540, 30, 700_000},
+            {640, 360, 24, 350_000},
+            {320, 180, 15, 0},
+    };
+    private static final long ladder_down_delay = 2000;     // in milliseconds below the rung's bitrate
+    private static final long ladder_up_delay = 6000;       // in milliseconds with room for the rung above
+    private static final int ladder_up_margin = 4;          // room means another 1/4th of its bitrate
 
     private final MediaCodec encoder;
     private final Handler upstream_thread;
     private final StatsListener stats_listener;
-    private Thread thread;
+    private HandlerThread thread;
     private final MediaFormat format;
     private final Surface input_surface;
     private boolean configured = false, started = false, released = false;
     private int bitrate;
-    private ConnectionMessagePipe pipe_out = null;
+    private volatile int bitrate_target = 0;
+    private volatile boolean keyframe_requested = false;
+    private ConnectionPipe pipe_out = null;
+    // The ladder from the size the encoder was created with down, and the rung the format is on
+    private final int[][] rungs;
+    private volatile int rung = 0;
+    private volatile boolean format_change_pending = false;
 
-    public static boolean checkInputSurfaceCompatibility(String mime, int width, int height) {
-        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
-        String codec = list.findEncoderForFormat(format);
-        MediaCodecInfo codec_info = null;
-        for (MediaCodecInfo i : list.getCodecInfos()) {
-            if (i.getName().equals(codec)) {
-                codec_info = i;
-                break;
-            }
-        }
-        if (codec_info == null)
-            throw new RuntimeException("Failed to check input surface compatibility");
-
-        for (int color_format : codec_info.getCapabilitiesForType(mime).colorFormats)
-            if (color_format == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
-                return true;
+    // Callback thread only
+    private long keyframe_last = 0;     // in milliseconds
+    private boolean pipe_closed = false;
+    private int ladder_direction = 0;   // which way the bitrate has been pointing, down is positive
+    private long ladder_since = 0;      // in milliseconds
+    private int ladder_target = 0;      // the estimate as of the last frame
+    private long ladder_rise = 0;       // in milliseconds, when the estimate last went up
 
-        return false;
+    public static boolean checkInputSurfaceCompatibility(String mime, int width, int height) {
+        return VideoCodecs.findEncoder(mime, width, height, 0) != null;
     }
 
-    VideoEncoder(String mime, int width, int height, int fps, int bitrate, @NonNull Surface input_surface, @NonNull StatsListener stats_listener) throws UnsupportedFormat, EncoderFailed {
+    // profile_level: {profile, level} both ends can handle, or null to leave it to the codec
+    VideoEncoder(String mime, int width, int height, int fps, int bitrate, int[] profile_level, @NonNull Surface input_surface, @NonNull StatsListener stats_listener) throws UnsupportedFormat, EncoderFailed {
         Log.d(TAG, "Initialized with mime=" + mime + " width=" + width + " height=" + height + " fps=" + fps + " bitrate=" + bitrate + " input from surface");
         this.input_surface = input_surface;
         this.bitrate = bitrate;
@@ -65,73 +83,175 @@ public class VideoEncoder {
         this.upstream_thread = new Handler(Looper.getMainLooper());
         format = MediaFormat.createVideoFormat(mime, width, height);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        String codec = list.findEncoderForFormat(format);
+        VideoCodecs.Codec codec = VideoCodecs.findEncoder(mime, width, height, fps);
         if (codec == null) {
             throw new UnsupportedFormat();
         }
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
-        format.setInteger(MediaFormat.KEY_CAPTURE_RATE, fps);
+        setFrameRate(fps);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
         format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, fps);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyframe_interval);
+        if (profile_level != null) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile_level[0]);
+            format.setInteger(MediaFormat.KEY_LEVEL, profile_level[1]);
+        }
+        // Real time, and nothing that makes the codec hold on to frames to look ahead
+        format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
         try {
-            encoder = MediaCodec.createByCodecName(codec);
+            encoder = MediaCodec.createByCodecName(codec.name);
         } catch (IOException e) {
             throw new EncoderFailed();
         }
 
+        // The size it was created with is the top, whatever rung of the ladder that's closest to
+        int smaller = 0;
+        while (smaller < ladder.length && ladder[smaller][0] * ladder[smaller][1] >= width * height)
+            smaller++;
+        rungs = new int[ladder.length - smaller + 1][];
+        rungs[0] = new int[] {width, height, fps, smaller > 0 ? ladder[smaller - 1][3] : ladder[0][3]};
+        System.arraycopy(ladder, smaller, rungs, 1, ladder.length - smaller);
+
         configure();
     }
 
-    private void configure() {
-        thread = new Thread(() -> {
-            Log.i(TAG, "Output buffer thread is running.");
-            while (true) {
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-                int index = encoder.dequeueOutputBuffer(info, -1);
-
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
-                    break;
-                if (index < 0)
-                    continue;
-
-                ByteBuffer buffer = encoder.getOutputBuffer(index);
-                if (buffer != null) {
-                    byte[] frame = new byte[info.size];
-                    buffer.position(info.offset);
-                    buffer.get(frame, 0, info.size);
-                    encoder.releaseOutputBuffer(index, false);
-
-                    if (!pipe_out.send(Connection.DATA_VIDEO, frame)) {
-                        Log.d(TAG, "Pipe closed, finishing early.");
-                        break;
-                    }
-
-                    switch (pipe_out.getRateHint()) {
-                        case ConnectionMessagePipe.RATE_OVERFLOW:
-                            if (bitrate > min_bitrate) {
-                                bitrate = Math.max(bitrate - bitrate_step, min_bitrate);
-                                Bundle new_param = new Bundle();
-                                new_param.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
-                                encoder.setParameters(new_param);
-                                upstream_thread.post(() -> stats_listener.onBitrateChange(bitrate));
-                            }
-                            break;
-
-                        case ConnectionMessagePipe.RATE_UNDERFLOW:
-                            if (bitrate < max_bitrate) {
-                                bitrate = Math.min(bitrate + bitrate_step, max_bitrate);
-                                Bundle new_param = new Bundle();
-                                new_param.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
-                                encoder.setParameters(new_param);
-                                upstream_thread.post(() -> stats_listener.onBitrateChange(bitrate));
-                            }
-                            break;
-                    }
-                }
+    // Output comes in on the codec's callback thread as soon as it's ready, no thread sits blocked on it
+    private final MediaCodec.Callback encoder_callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int i) {
+            // Input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int i, @NonNull MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mediaCodec.releaseOutputBuffer(i, false);
+                thread.quit();
+                return;
+            }
+            // Nowhere to send it, just keep the codec going until the EOS
+            if (pipe_closed) {
+                mediaCodec.releaseOutputBuffer(i, false);
+                return;
+            }
+
+            // A keyframe coming out after a request takes care of it, whether it was forced or not
+            long now = System.nanoTime() / 1000000;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                keyframe_requested = false;
+                keyframe_last = now;
+            } else if (keyframe_requested && now - keyframe_last >= keyframe_request_interval) {
+                // Requests that come too soon stay pending until then
+                Log.d(TAG, "Forcing keyframe on request");
+                Bundle new_param = new Bundle();
+                new_param.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                mediaCodec.setParameters(new_param);
+                keyframe_requested = false;
+                keyframe_last = now;
             }
-            Log.i(TAG, "Output buffer thread has finished.");
-        });
+
+            ByteBuffer buffer = mediaCodec.getOutputBuffer(i);
+            if (buffer == null) {
+                mediaCodec.releaseOutputBuffer(i, false);
+                return;
+            }
+            // Whatever the other end starts decoding from carries the format, so its decoder is set up
+            // for the size right when the first frame of it comes in
+            boolean keyframe = (info.flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME | MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) != 0;
+            ConnectionMessage frame = ConnectionMessage.obtain(Connection.DATA_VIDEO, info.size + (keyframe ? Connection.VIDEO_FORMAT_SIZE : 0));
+            frame.timestamp = captureTime(info.presentationTimeUs);
+            // Codec config has to make it through just like a keyframe
+            if (keyframe)
+                frame.flags = ConnectionMessage.FLAG_KEYFRAME | ConnectionMessage.FLAG_FORMAT;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+                frame.flags |= ConnectionMessage.FLAG_CODEC_CONFIG;
+            buffer.position(info.offset);
+            buffer.get(frame.data, 0, info.size);
+            mediaCodec.releaseOutputBuffer(i, false);
+            if (keyframe) {
+                ByteBuffer trailer = frame.buffer();
+                trailer.position(info.size);
+                trailer.putShort((short) format.getInteger(MediaFormat.KEY_WIDTH))
+                        .putShort((short) format.getInteger(MediaFormat.KEY_HEIGHT))
+                        .put((byte) format.getInteger(MediaFormat.KEY_FRAME_RATE));
+            }
+
+            if (!pipe_out.send(frame)) {
+                Log.d(TAG, "Pipe closed, dropping output until stopped.");
+                pipe_closed = true;
+                return;
+            }
+
+            // Follow the connection's bandwidth estimate
+            int target = bitrate_target;
+            if (target != 0 && Math.abs(target - bitrate) > bitrate / bitrate_tolerance) {
+                bitrate = target;
+                Bundle new_param = new Bundle();
+                new_param.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+                mediaCodec.setParameters(new_param);
+                upstream_thread.post(() -> stats_listener.onBitrateChange(target));
+            }
+            followLadder(now);
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Error from MediaCodec: " + e.getClass() + ": " + e.getMessage());
+            thread.quit();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat mediaFormat) {
+            Log.d(TAG, "MediaCodec changed output format to " + mediaFormat);
+        }
+    };
+
+    // Asks to move down a rung once the bitrate has been too low for this one for a while, and back up
+    // once it's had room for the one above for longer, so a short dip doesn't restart the encoder. The
+    // bitrate the encoder starts with is only a guess, and the estimate climbs from there for the first
+    // seconds of a call, so nothing moves until the estimate is in, and not down while it's still going up.
+    private void followLadder(long now) {
+        int target = bitrate_target;
+        if (target == 0)
+            return;
+        if (target > ladder_target)
+            ladder_rise = now;
+        ladder_target = target;
+        if (format_change_pending)
+            return;
+        int current = rung, wanted = current;
+        if (current + 1 < rungs.length && bitrate < rungs[current][3])
+            wanted = current + 1;
+        else if (current > 0 && bitrate >= rungs[current - 1][3] + rungs[current - 1][3] / ladder_up_margin)
+            wanted = current - 1;
+
+        int direction = Integer.compare(wanted, current);
+        if (direction == 0 || direction != ladder_direction) {
+            ladder_direction = direction;
+            ladder_since = now;
+            return;
+        }
+        if (direction > 0 ? now - Math.max(ladder_since, ladder_rise) < ladder_down_delay : now - ladder_since < ladder_up_delay)
+            return;
+
+        ladder_direction = 0;
+        format_change_pending = true;
+        int[] next = rungs[wanted];
+        Log.i(TAG, "Bitrate " + bitrate / 1000 + "kbit/s, asking for " + next[0] + "x" + next[1] + "@" + next[2]);
+        upstream_thread.post(() -> stats_listener.onFormatChange(next[0], next[1], next[2]));
+    }
+
+    private void configure() {
+        // Callbacks only get delivered once the codec is started, and reset() clears them
+        thread = new HandlerThread(TAG);
+        thread.start();
+        encoder.setCallback(encoder_callback, new Handler(thread.getLooper()));
+        keyframe_last = 0;
+        pipe_closed = false;
+        ladder_direction = 0;
+        ladder_target = 0;
+        format_change_pending = false;
 
         bitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
         upstream_thread.post(() -> stats_listener.onBitrateChange(bitrate));
@@ -154,7 +274,6 @@ public class VideoEncoder {
         if (!configured)
             configure();
         encoder.start();
-        thread.start();
         started = true;
     }
 
@@ -180,11 +299,71 @@ public class VideoEncoder {
         Log.d(TAG, "Releasing resources");
         if (started)
             stop();
+        else if (configured)
+            thread.quit();
         encoder.release();
         released = true;
     }
 
-    public void setOutgoingMessagePipe(ConnectionMessagePipe pipe) {
+    private void setFrameRate(int fps) {
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+        format.setInteger(MediaFormat.KEY_CAPTURE_RATE, fps);
+        // The camera keeps going at its own rate, this makes the codec drop what's over
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, fps);
+    }
+
+    // Moves to another picture size and frame rate, usually the one onFormatChange() asked for. Restarts
+    // the encoder if it's running, which tells the decoder on the other end. The camera has to restart its
+    // session after, for it to send the new size.
+    public void setFormat(int width, int height, int fps) {
+        Log.d(TAG, "Changing format to " + width + "x" + height + "@" + fps);
+        for (int i = 0; i < rungs.length; i++)
+            if (rungs[i][0] == width && rungs[i][1] == height && rungs[i][2] == fps)
+                rung = i;
+
+        boolean restart = started;
+        if (started) {
+            stop();
+        } else if (configured) {
+            encoder.reset();
+            thread.quit();
+            configured = false;
+        }
+        format.setInteger(MediaFormat.KEY_WIDTH, width);
+        format.setInteger(MediaFormat.KEY_HEIGHT, height);
+        setFrameRate(fps);
+        // Pick up where the bitrate was, not where it started
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format_change_pending = false;
+        if (restart)
+            start();
+    }
+
+    public void setOutgoingMessagePipe(ConnectionPipe pipe) {
         this.pipe_out = pipe;
     }
+
+    // Can be called from any thread
+    public void requestKeyframe() {
+        keyframe_requested = true;
+    }
+
+    // Can be called from any thread, gets applied with the next frame
+    public void setTargetBitrate(int bitrate) {
+        bitrate_target = Math.max(min_bitrate, Math.min(max_bitrate, bitrate));
+    }
+
+    // When a frame was captured, in microseconds (System.nanoTime() / 1000). Frames coming through the
+    // input surface carry the camera's sensor timestamp, which is on the boot time clock on most
+    // devices and on System.nanoTime()'s on the rest. Falls back to now if it looks like neither.
+    private static long captureTime(long presentation) {
+        long now = System.nanoTime() / 1000;
+        if (presentation <= now && now - presentation < capture_delay_max)
+            return presentation;
+        long presentation_boottime = presentation - (SystemClock.elapsedRealtimeNanos() / 1000 - now);
+        if (presentation_boottime <= now && now - presentation_boottime < capture_delay_max)
+            return presentation_boottime;
+        return now;
+    }
 }
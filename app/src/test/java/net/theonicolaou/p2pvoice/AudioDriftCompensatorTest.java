@@ -0,0 +1,89 @@
+package net.theonicolaou.p2pvoice;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioDriftCompensatorTest {
+    private static final int frame_samples = 480;                   // 10ms
+    private static final long call_length = 3600L * 100;            // in frames, an hour
+    private static final long settled_after = 120L * 100;           // in frames
+    private static final long step_interval = 300L * 100;           // in frames, jitter buffer changes its delay
+    private static final long capture_noise = 5000;                 // in microseconds
+
+    // Plays an hour of audio from an end whose clock runs fast by ppm, and returns how much the delay
+    // moved between settling and the end, leaving out the jumps the jitter buffer made on purpose
+    private static long simulate(AudioDriftCompensator compensator, int ppm, boolean correct) {
+        Random random = new Random(ppm);
+        double rate = 1 + ppm / 1_000_000.0;
+        long written = 0, steps = 0, settled_delay = 0, delay = 0;
+        for (long frame = 0; frame < call_length; frame++) {
+            long capture = (long) (frame * 10_000 / rate);
+            // Capture time is only known when the read returns, which can be late
+            long capture_measured = capture + (long) (random.nextDouble() * capture_noise);
+            long playout = 1_000_000 + written * 1000 / 48 + steps;
+            compensator.onPlayout(capture_measured, playout);
+            delay = playout - steps - capture;
+            if (frame == settled_after)
+                settled_delay = delay;
+
+            written += frame_samples + (correct ? compensator.adjust(frame_samples) : 0);
+            if (frame % step_interval == step_interval - 1)
+                steps += (frame / step_interval) % 2 == 0 ? 20_000 : -10_000;
+        }
+        return delay - settled_delay;
+    }
+
+    @Test
+    public void delayDriftsWithoutCorrection() {
+        long moved = simulate(new AudioDriftCompensator(), 100, false);
+        assertTrue("moved " + moved, moved > 300_000);
+    }
+
+    @Test
+    public void fastRemoteClockStaysFlat() {
+        AudioDriftCompensator compensator = new AudioDriftCompensator();
+        long moved = simulate(compensator, 100, true);
+        assertTrue("moved " + moved, Math.abs(moved) < 5_000);
+        assertTrue("drift " + compensator.getDrift(), Math.abs(compensator.getDrift() - 100) <= 5);
+    }
+
+    @Test
+    public void slowRemoteClockStaysFlat() {
+        AudioDriftCompensator compensator = new AudioDriftCompensator();
+        long moved = simulate(compensator, -250, true);
+        assertTrue("moved " + moved, Math.abs(moved) < 5_000);
+        assertTrue("drift " + compensator.getDrift(), Math.abs(compensator.getDrift() + 250) <= 5);
+    }
+
+    @Test
+    public void matchingClocksAreLeftAlone() {
+        AudioDriftCompensator compensator = new AudioDriftCompensator();
+        long moved = simulate(compensator, 0, true);
+        assertTrue("moved " + moved, Math.abs(moved) < 5_000);
+        assertTrue("drift " + compensator.getDrift(), Math.abs(compensator.getDrift()) <= 5);
+    }
+
+    @Test
+    public void stretchKeepsEndsAndShape() {
+        byte[] in = new byte[frame_samples * 2], out = new byte[(frame_samples + 1) * 2];
+        for (int i = 0; i < frame_samples; i++) {
+            int value = i * 64 - 15000;
+            in[2 * i] = (byte) value;
+            in[2 * i + 1] = (byte) (value >> 8);
+        }
+        for (int samples_out : new int[] {frame_samples - 1, frame_samples + 1}) {
+            AudioDriftCompensator.stretch(in, frame_samples, out, samples_out);
+            int previous = Integer.MIN_VALUE;
+            for (int i = 0; i < samples_out; i++) {
+                int value = (short) ((out[2 * i] & 0xff) | (out[2 * i + 1] << 8));
+                assertTrue(value >= previous);
+                previous = value;
+            }
+            assertEquals(-15000, (short) ((out[0] & 0xff) | (out[1] << 8)));
+            assertEquals((frame_samples - 1) * 64 - 15000, previous);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.theonicolaou.p2pvoice;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioPacketizerTest {
+    private static final int toc_celt_20ms = 31 << 3;
+    private static final int toc_silk_60ms = 3 << 3;
+    private static final int warmup_messages = 200_000;
+    private static final int measured_messages = 200_000;
+    // For the odd allocation outside the loop's control, like the JIT swapping in compiled code. Even
+    // one byte per message would be far over it.
+    private static final long allocated_max = 4096;
+
+    private static byte[] frame(int toc, int size, int fill) {
+        byte[] frame = new byte[size];
+        frame[0] = (byte) toc;
+        for (int i = 1; i < size; i++)
+            frame[i] = (byte) (fill + i);
+        return frame;
+    }
+
+    private static void assertFrames(ConnectionMessage message, byte[][] frames, int count) {
+        int[] offsets = new int[AudioPacketizer.frames_max], sizes = new int[AudioPacketizer.frames_max];
+        assertEquals(count, AudioPacketizer.unpackFrames(message, offsets, sizes));
+        for (int i = 0; i < count; i++) {
+            assertEquals(frames[i].length, sizes[i]);
+            for (int j = 0; j < sizes[i]; j++)
+                assertEquals(frames[i][j], message.data[offsets[i] + j]);
+        }
+    }
+
+    @Test
+    public void framesRoundTrip() {
+        Random random = new Random(1);
+        AudioPacketizer packetizer = new AudioPacketizer();
+        for (int round = 0; round < 1000; round++) {
+            int count = 1 + random.nextInt(AudioPacketizer.frames_max);
+            byte[][] frames = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                frames[i] = frame(toc_celt_20ms, 1 + random.nextInt(AudioPacketizer.opus_packet_size_max), round + i);
+                packetizer.add(frames[i]);
+            }
+            ConnectionMessage message = packetizer.build(false, false);
+            assertEquals(Connection.DATA_AUDIO, message.type);
+            assertEquals(0, message.flags);
+            assertFrames(message, frames, count);
+            assertEquals(count * 20_000L, AudioPacketizer.messageDuration(message));
+            message.recycle();
+        }
+    }
+
+    @Test
+    public void redundantCarriesPreviousMessage() {
+        AudioPacketizer packetizer = new AudioPacketizer();
+        byte[][] first = {frame(toc_silk_60ms, 40, 1)};
+        byte[][] second = {frame(toc_celt_20ms, 30, 2), frame(toc_celt_20ms, 20, 3)};
+
+        packetizer.add(first[0]);
+        packetizer.build(true, false).recycle();
+        packetizer.add(second[0]);
+        packetizer.add(second[1]);
+        ConnectionMessage message = packetizer.build(true, false);
+        message.sequence = 8;
+        message.timestamp = 1_000_000;
+        assertEquals(ConnectionMessage.FLAG_REDUNDANT, message.flags);
+
+        ConnectionMessage recovered = AudioPacketizer.unpackRedundant(message);
+        assertEquals(0, message.flags);
+        assertFrames(message, second, 2);
+        assertNotNull(recovered);
+        assertFrames(recovered, first, 1);
+        assertEquals(7, recovered.sequence);
+        assertEquals(1_000_000 - 60_000, recovered.timestamp);
+        message.recycle();
+        recovered.recycle();
+    }
+
+    @Test
+    public void lastMessageIsNotCarriedAgain() {
+        AudioPacketizer packetizer = new AudioPacketizer();
+        packetizer.add(frame(toc_celt_20ms, 10, 0));
+        ConnectionMessage message = packetizer.build(true, true);
+        assertEquals(ConnectionMessage.FLAG_DTX, message.flags);
+        message.recycle();
+
+        packetizer.add(frame(toc_celt_20ms, 10, 0));
+        message = packetizer.build(true, false);
+        assertEquals(0, message.flags & ConnectionMessage.FLAG_REDUNDANT);
+        message.recycle();
+    }
+
+    @Test
+    public void brokenMessagesHaveNoFrames() {
+        int[] offsets = new int[AudioPacketizer.frames_max], sizes = new int[AudioPacketizer.frames_max];
+        byte[][] broken = {
+                {},
+                {0},
+                {3, 0, 50, 1},                      // second frame runs past the end
+                {1},                                // empty frame
+                {1, (byte) (toc_celt_20ms | 3)},    // frame count code without the count
+        };
+        for (byte[] data : broken) {
+            ConnectionMessage message = ConnectionMessage.obtain(Connection.DATA_AUDIO, data);
+            assertEquals(0, AudioPacketizer.unpackFrames(message, offsets, sizes));
+            assertEquals(0, AudioPacketizer.messageDuration(message));
+            message.recycle();
+        }
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        byte[][] frames = {frame(toc_celt_20ms, 60, 0), frame(toc_celt_20ms, 70, 1), frame(toc_celt_20ms, 80, 2)};
+        int[] offsets = new int[AudioPacketizer.frames_max], sizes = new int[AudioPacketizer.frames_max];
+        AudioPacketizer packetizer = new AudioPacketizer();
+
+        // Sender packs, receiver splits off the copy of the previous message and finds the frames
+        long checksum = 0, allocated = 0;
+        for (int i = 0; i < warmup_messages + measured_messages; i++) {
+            if (i == warmup_messages)
+                allocated = threads.getThreadAllocatedBytes(thread);
+            for (byte[] frame : frames)
+                packetizer.add(frame);
+            ConnectionMessage message = packetizer.build(i % 2 == 0, false);
+            ConnectionMessage recovered = null;
+            if ((message.flags & ConnectionMessage.FLAG_REDUNDANT) != 0)
+                recovered = AudioPacketizer.unpackRedundant(message);
+            checksum += AudioPacketizer.messageDuration(message);
+            checksum += AudioPacketizer.unpackFrames(message, offsets, sizes);
+            message.recycle();
+            if (recovered != null)
+                recovered.recycle();
+        }
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        assertEquals((warmup_messages + measured_messages) * (60_000L + 3), checksum);
+        assertTrue("allocated " + allocated + " bytes over " + measured_messages + " messages", allocated <= allocated_max);
+    }
+}
@@ -0,0 +1,148 @@
+package net.theonicolaou.p2pvoice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CallCapabilitiesTest {
+    private static final String avc = "video/avc", hevc = "video/hevc", vp8 = "video/x-vnd.on2.vp8", av1 = "video/av01";
+    private static final int hardware = CallCapabilities.Video.FLAG_HARDWARE_ENCODER | CallCapabilities.Video.FLAG_HARDWARE_DECODER;
+    // Profile and level constants as MediaCodecInfo.CodecProfileLevel has them
+    private static final int avc_baseline = 1, avc_main = 2, avc_high = 8;
+    private static final int avc_constrained_baseline = 0x10000, avc_constrained_high = 0x80000;
+    private static final int avc_level_31 = 0x200, avc_level_4 = 0x800, avc_level_51 = 0x4000;
+
+    private static CallCapabilities.Video video(String mime, int flags, int[] encoder_profile_levels, int[] decoder_profile_levels) {
+        return new CallCapabilities.Video(mime, flags, encoder_profile_levels, decoder_profile_levels);
+    }
+
+    private static CallCapabilities.Video video(String mime, int flags) {
+        return video(mime, flags, new int[0], new int[0]);
+    }
+
+    private static CallCapabilities capabilities(int width, int height, int fps, int audio_bitrate, CallCapabilities.Video... video) {
+        return new CallCapabilities(width, height, fps, audio_bitrate, new ArrayList<>(Arrays.asList(video)));
+    }
+
+    @Test
+    public void roundTrip() {
+        CallCapabilities sent = capabilities(1280, 720, 30, 50000,
+                video(avc, hardware, new int[] {avc_baseline, avc_level_31, avc_high, avc_level_4}, new int[] {avc_high, avc_level_51}),
+                video(vp8, CallCapabilities.Video.FLAG_HARDWARE_DECODER));
+        byte[] data = sent.toBytes();
+        CallCapabilities received = CallCapabilities.parse(data, data.length);
+
+        assertNotNull(received);
+        assertEquals(1280, received.width);
+        assertEquals(720, received.height);
+        assertEquals(30, received.fps);
+        assertEquals(50000, received.audio_bitrate);
+        assertEquals(2, received.video.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(sent.video.get(i).mime, received.video.get(i).mime);
+            assertEquals(sent.video.get(i).flags, received.video.get(i).flags);
+            assertArrayEquals(sent.video.get(i).encoder_profile_levels, received.video.get(i).encoder_profile_levels);
+            assertArrayEquals(sent.video.get(i).decoder_profile_levels, received.video.get(i).decoder_profile_levels);
+        }
+    }
+
+    @Test
+    public void brokenMessagesAreRejected() {
+        byte[] data = capabilities(1280, 720, 30, 50000, video(avc, hardware, new int[] {avc_high, avc_level_4}, new int[0])).toBytes();
+        for (int length = 0; length < data.length; length++)
+            assertNull("length " + length, CallCapabilities.parse(data, length));
+
+        byte[] no_fps = capabilities(1280, 720, 0, 50000).toBytes();
+        assertNull(CallCapabilities.parse(no_fps, no_fps.length));
+    }
+
+    @Test
+    public void newerVersionsCanAddToTheEnd() {
+        byte[] data = capabilities(640, 360, 24, 32000, video(avc, hardware)).toBytes();
+        byte[] newer = Arrays.copyOf(data, data.length + 5);
+        newer[0] = 2;
+        CallCapabilities received = CallCapabilities.parse(newer, newer.length);
+        assertNotNull(received);
+        assertEquals(1, received.video.size());
+        assertEquals(640, received.width);
+    }
+
+    @Test
+    public void prefersEfficientHardwareCodecs() {
+        CallCapabilities a = capabilities(1280, 720, 30, 50000, video(avc, hardware), video(hevc, hardware), video(av1, 0));
+        CallCapabilities b = capabilities(1280, 720, 30, 50000, video(av1, hardware), video(avc, hardware), video(hevc, hardware));
+        // AV1 is better, but only in software on one end
+        assertEquals(hevc, CallCapabilities.negotiate(a, b).mime);
+        assertEquals(hevc, CallCapabilities.negotiate(b, a).mime);
+
+        CallCapabilities c = capabilities(1280, 720, 30, 50000, video(av1, hardware), video(hevc, hardware));
+        assertEquals(av1, CallCapabilities.negotiate(b, c).mime);
+        assertEquals(av1, CallCapabilities.negotiate(c, b).mime);
+    }
+
+    @Test
+    public void bothEndsAgreeWhateverTheOrder() {
+        String[] mimes = {avc, hevc, vp8, av1, "video/unknown-a", "video/unknown-b"};
+        Random random = new Random(3);
+        for (int round = 0; round < 500; round++) {
+            List<CallCapabilities.Video> a = new ArrayList<>(), b = new ArrayList<>();
+            for (String mime : mimes) {
+                if (random.nextInt(3) != 0)
+                    a.add(video(mime, random.nextBoolean() ? hardware : 0));
+                if (random.nextInt(3) != 0)
+                    b.add(video(mime, random.nextBoolean() ? hardware : 0));
+            }
+            Collections.shuffle(a, random);
+            Collections.shuffle(b, random);
+            CallCapabilities local = new CallCapabilities(1280, 720, 30, 50000, a);
+            CallCapabilities remote = new CallCapabilities(1280, 720, 30, 50000, b);
+            assertEquals(CallCapabilities.negotiate(local, remote).mime, CallCapabilities.negotiate(remote, local).mime);
+        }
+    }
+
+    @Test
+    public void takesTheLowerSettings() {
+        CallCapabilities a = capabilities(1280, 720, 30, 50000, video(avc, hardware));
+        CallCapabilities b = capabilities(960, 540, 24, 32000, video(avc, hardware));
+        for (CallCapabilities.Session session : new CallCapabilities.Session[] {CallCapabilities.negotiate(a, b), CallCapabilities.negotiate(b, a)}) {
+            assertEquals(960, session.width);
+            assertEquals(540, session.height);
+            assertEquals(24, session.fps);
+            assertEquals(32000, session.audio_bitrate);
+        }
+    }
+
+    @Test
+    public void noCommonCodecMeansNoVideo() {
+        CallCapabilities.Session session = CallCapabilities.negotiate(
+                capabilities(1280, 720, 30, 50000, video(hevc, hardware)),
+                capabilities(1280, 720, 30, 40000, video(avc, hardware)));
+        assertNull(session.mime);
+        assertEquals(40000, session.audio_bitrate);
+    }
+
+    @Test
+    public void profileIsOneTheOtherEndDecodes() {
+        CallCapabilities a = capabilities(1280, 720, 30, 50000,
+                video(avc, hardware, new int[] {avc_baseline, avc_level_51, avc_constrained_baseline, avc_level_51, avc_constrained_high, avc_level_51}, new int[] {avc_baseline, avc_level_4}));
+        CallCapabilities b = capabilities(1280, 720, 30, 50000,
+                video(avc, hardware, new int[] {avc_baseline, avc_level_4}, new int[] {avc_constrained_high, avc_level_4, avc_baseline, avc_level_51}));
+        assertArrayEquals(new int[] {avc_constrained_high, avc_level_4}, CallCapabilities.negotiate(a, b).profile_level);
+        assertArrayEquals(new int[] {avc_baseline, avc_level_4}, CallCapabilities.negotiate(b, a).profile_level);
+    }
+
+    @Test
+    public void profilesWithBFramesOnlyWhenTheyCanBeTurnedOff() {
+        int[] encoder = {avc_baseline, avc_level_51, avc_main, avc_level_51, avc_high, avc_level_51};
+        int[] decoder = {avc_main, avc_level_4, avc_high, avc_level_4, avc_baseline, avc_level_31};
+        assertArrayEquals(new int[] {avc_high, avc_level_4}, VideoCodecs.pickProfileLevel(avc, encoder, decoder, true));
+        assertArrayEquals(new int[] {avc_baseline, avc_level_31}, VideoCodecs.pickProfileLevel(avc, encoder, decoder, false));
+        assertNull(VideoCodecs.pickProfileLevel(avc, new int[] {avc_main, avc_level_4}, null, false));
+    }
+}
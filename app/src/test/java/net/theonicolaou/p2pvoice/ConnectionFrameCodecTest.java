@@ -0,0 +1,230 @@
+package net.theonicolaou.p2pvoice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConnectionFrameCodecTest {
+    private static final int frame_count = 1_000_000;
+    private static final int batch_size = 1000;
+
+    private static ByteBuffer encode(int type, int size, int sequence, long timestamp, int flags, int fill) {
+        ByteBuffer frame = ByteBuffer.allocate(Connection.MSG_HEADER_SIZE + Math.max(size, 0)).order(ByteOrder.BIG_ENDIAN);
+        frame.putInt(type).putInt(size).putInt(sequence).putLong(timestamp).putInt(flags);
+        for (int i = 0; i < size; i++)
+            frame.put((byte) (fill + i));
+        frame.flip();
+        return frame;
+    }
+
+    private static void assertFrame(ConnectionMessage message, int type, int size, int sequence, long timestamp, int flags, int fill) {
+        assertNotNull(message);
+        assertEquals(type, message.type);
+        assertEquals(size, message.length);
+        assertEquals(sequence, message.sequence);
+        assertEquals(timestamp, message.timestamp);
+        assertEquals(flags, message.flags);
+        for (int i = 0; i < size; i++)
+            assertEquals((byte) (fill + i), message.data[i]);
+        message.recycle();
+    }
+
+    // Feeds the input in pieces of random size, as a socket would hand it out
+    private static int decodeChunked(ConnectionFrameCodec codec, ByteBuffer stream, Random random, ConnectionMessage[] out) {
+        int count = 0;
+        while (stream.hasRemaining()) {
+            int chunk = Math.min(stream.remaining(), 1 + random.nextInt(random.nextBoolean() ? 16 : 4096));
+            ByteBuffer input = stream.slice();
+            input.limit(chunk);
+            ConnectionMessage message;
+            while ((message = codec.decode(input)) != null)
+                out[count++] = message;
+            assertFalse(input.hasRemaining());
+            stream.position(stream.position() + chunk);
+        }
+        return count;
+    }
+
+    @Test
+    public void randomFramesRandomChunks() {
+        Random random = new Random(1);
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+        ConnectionMessage[] out = new ConnectionMessage[batch_size];
+        int[] types = new int[batch_size], sizes = new int[batch_size], flags = new int[batch_size];
+        long[] timestamps = new long[batch_size];
+
+        for (int sequence = 0; sequence < frame_count; sequence += batch_size) {
+            int total = 0;
+            ByteBuffer[] frames = new ByteBuffer[batch_size];
+            for (int i = 0; i < batch_size; i++) {
+                types[i] = random.nextInt(9);
+                // Mostly audio sized, some video sized, some empty
+                int kind = random.nextInt(100);
+                sizes[i] = kind < 5 ? 0 : kind < 95 ? random.nextInt(200) : random.nextInt(20_000);
+                timestamps[i] = random.nextLong();
+                flags[i] = random.nextInt();
+                frames[i] = encode(types[i], sizes[i], sequence + i, timestamps[i], flags[i], sequence + i);
+                total += frames[i].remaining();
+            }
+            ByteBuffer stream = ByteBuffer.allocate(total);
+            for (ByteBuffer frame : frames)
+                stream.put(frame);
+            stream.flip();
+
+            assertEquals(batch_size, decodeChunked(codec, stream, random, out));
+            for (int i = 0; i < batch_size; i++)
+                assertFrame(out[i], types[i], sizes[i], sequence + i, timestamps[i], flags[i], sequence + i);
+        }
+    }
+
+    @Test
+    public void readsStraightFromStream() throws IOException {
+        ByteBuffer stream = ByteBuffer.allocate(1000);
+        stream.put(encode(Connection.DATA_AUDIO, 100, 1, 2, 0, 1))
+                .put(encode(Connection.DATA_END_CALL, 0, 0, 3, 0, 0))
+                .put(encode(Connection.DATA_VIDEO, Connection.MSG_SIZE_MAX + 1, 0, 0, 0, 0).limit(Connection.MSG_HEADER_SIZE))
+                .put(encode(Connection.DATA_VIDEO, 50, 2, 4, ConnectionMessage.FLAG_KEYFRAME, 7));
+        int length = stream.position();
+        byte[] oversized = new byte[Connection.MSG_SIZE_MAX + 1];
+        byte[] data = new byte[length + oversized.length];
+        // Oversized payload goes after its header, which is third
+        int third = 2 * Connection.MSG_HEADER_SIZE + 100 + Connection.MSG_HEADER_SIZE;
+        System.arraycopy(stream.array(), 0, data, 0, third);
+        System.arraycopy(stream.array(), third, data, third + oversized.length, length - third);
+
+        // A socket hands out whatever it has, never more than asked for, and never 0 bytes for a
+        // non-empty read
+        Random random = new Random(4);
+        InputStream input = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                assertTrue(len > 0);
+                return super.read(b, off, Math.min(len, 1 + random.nextInt(30)));
+            }
+        };
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+        ConnectionMessage[] out = new ConnectionMessage[3];
+        int count = 0;
+        while (true) {
+            ConnectionMessage message = codec.take();
+            if (message != null) {
+                out[count++] = message;
+                continue;
+            }
+            if (!codec.read(input))
+                break;
+        }
+        assertEquals(3, count);
+        assertFrame(out[0], Connection.DATA_AUDIO, 100, 1, 2, 0, 1);
+        assertFrame(out[1], Connection.DATA_END_CALL, 0, 0, 3, 0, 0);
+        assertFrame(out[2], Connection.DATA_VIDEO, 50, 2, 4, ConnectionMessage.FLAG_KEYFRAME, 7);
+        assertEquals(1, codec.getSkipped());
+    }
+
+    @Test
+    public void headerSplitAtEveryByte() {
+        ByteBuffer frame = encode(Connection.DATA_AUDIO, 40, 7, 123456789L, ConnectionMessage.FLAG_KEYFRAME, 3);
+        for (int split = 0; split <= frame.limit(); split++) {
+            ConnectionFrameCodec codec = new ConnectionFrameCodec();
+            ByteBuffer first = frame.duplicate();
+            first.limit(split);
+            ByteBuffer second = frame.duplicate();
+            second.position(split);
+
+            ConnectionMessage message = codec.decode(first);
+            if (split < frame.limit()) {
+                assertNull(message);
+                message = codec.decode(second);
+            }
+            assertFrame(message, Connection.DATA_AUDIO, 40, 7, 123456789L, ConnectionMessage.FLAG_KEYFRAME, 3);
+        }
+    }
+
+    @Test
+    public void zeroSizeMessage() {
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+        ByteBuffer input = encode(Connection.DATA_END_CALL, 0, 0, 1, 0, 0);
+        assertFrame(codec.decode(input), Connection.DATA_END_CALL, 0, 0, 1, 0, 0);
+        assertNull(codec.decode(input));
+    }
+
+    @Test
+    public void maximumSizeMessage() {
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+        ByteBuffer input = encode(Connection.DATA_VIDEO, Connection.MSG_SIZE_MAX, 1, 2, 0, 5);
+        assertFrame(codec.decode(input), Connection.DATA_VIDEO, Connection.MSG_SIZE_MAX, 1, 2, 0, 5);
+        assertEquals(0, codec.getSkipped());
+    }
+
+    @Test
+    public void oversizedMessageSkipped() {
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+        ByteBuffer oversized = encode(Connection.DATA_VIDEO, Connection.MSG_SIZE_MAX + 1, 1, 2, 0, 0);
+        ByteBuffer next = encode(Connection.DATA_AUDIO, 10, 2, 3, 0, 9);
+        ByteBuffer stream = ByteBuffer.allocate(oversized.remaining() + next.remaining());
+        stream.put(oversized).put(next).flip();
+
+        ConnectionMessage[] out = new ConnectionMessage[1];
+        assertEquals(1, decodeChunked(codec, stream, new Random(2), out));
+        assertFrame(out[0], Connection.DATA_AUDIO, 10, 2, 3, 0, 9);
+        assertEquals(1, codec.getSkipped());
+    }
+
+    @Test(expected = Connection.InvalidMessage.class)
+    public void negativeSizeThrows() {
+        new ConnectionFrameCodec().decode(encode(Connection.DATA_AUDIO, -1, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void invalidTypeThrows() {
+        for (int type : new int[] {-1, Byte.MAX_VALUE + 1, Integer.MIN_VALUE}) {
+            try {
+                new ConnectionFrameCodec().decode(encode(type, 4, 0, 0, 0, 0));
+                fail("type " + type);
+            } catch (Connection.InvalidMessage ignored) {}
+        }
+    }
+
+    @Test
+    public void resetDropsPartialMessage() {
+        ConnectionFrameCodec codec = new ConnectionFrameCodec();
+        ByteBuffer partial = encode(Connection.DATA_AUDIO, 100, 0, 0, 0, 0);
+        partial.limit(50);
+        assertNull(codec.decode(partial));
+        codec.reset();
+        assertFrame(codec.decode(encode(Connection.DATA_VIDEO, 4, 1, 2, 3, 4)), Connection.DATA_VIDEO, 4, 1, 2, 3, 4);
+    }
+
+    @Test
+    public void garbageOnlyThrowsInvalidMessage() {
+        Random random = new Random(3);
+        byte[] garbage = new byte[64 * 1024];
+        for (int round = 0; round < 1000; round++) {
+            random.nextBytes(garbage);
+            // Keep sizes small enough that the garbage actually gets parsed past the first header
+            for (int i = 4; i < garbage.length; i += 4 + random.nextInt(256))
+                garbage[i] &= round % 2 == 0 ? 0x00 : 0x80;
+
+            ConnectionFrameCodec codec = new ConnectionFrameCodec();
+            ByteBuffer input = ByteBuffer.wrap(garbage);
+            try {
+                ConnectionMessage message;
+                while ((message = codec.decode(input)) != null) {
+                    assertTrue(message.length >= 0 && message.length <= Connection.MSG_SIZE_MAX);
+                    message.recycle();
+                }
+                assertFalse(input.hasRemaining());
+            } catch (Connection.InvalidMessage ignored) {
+                // The only way it's allowed to fail
+            }
+            codec.reset();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// The connection code only needs android.util.Log from the platform, so it's built straight from the
+// app's sources, with a stand-in Log under src/main/java. Runs on any JVM: ./gradlew :benchmark:jmh
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include(
+                "android/**",
+                "net/theonicolaou/p2pvoice/BandwidthEstimator.java",
+                "net/theonicolaou/p2pvoice/Connection.java",
+                "net/theonicolaou/p2pvoice/ConnectionBufferPool.java",
+                "net/theonicolaou/p2pvoice/ConnectionFrameCodec.java",
+                "net/theonicolaou/p2pvoice/ConnectionMessage.java",
+                "net/theonicolaou/p2pvoice/ConnectionMessagePipe.java",
+                "net/theonicolaou/p2pvoice/ConnectionPipe.java",
+                "net/theonicolaou/p2pvoice/ConnectionPipeCounters.java",
+                "net/theonicolaou/p2pvoice/ConnectionScheduler.java",
+                "net/theonicolaou/p2pvoice/LatencyHistogram.java",
+                "net/theonicolaou/p2pvoice/LatencyStats.java"
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.jetbrains.annotations)
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+    resultFormat = "JSON"
+}
@@ -0,0 +1,25 @@
+package net.theonicolaou.p2pvoice;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// Locked pipe with any number of producers, like the ones shared by several senders
+@State(Scope.Thread)
+public class ConnectionMessagePipeBenchmark extends PipeBenchmark {
+    @Param({"1", "2", "4"})
+    public int producers;
+
+    @Param({"false", "true"})
+    public boolean drop_frames;
+
+    @Override
+    ConnectionMessagePipe createPipe() {
+        return new ConnectionMessagePipe(130, drop_frames);
+    }
+
+    @Override
+    int producerCount() {
+        return producers;
+    }
+}
@@ -0,0 +1,22 @@
+package net.theonicolaou.p2pvoice;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// Lock-free pipe, which only takes a single producer
+@State(Scope.Thread)
+public class ConnectionMessagePipeLockFreeBenchmark extends PipeBenchmark {
+    @Param({"false", "true"})
+    public boolean drop_frames;
+
+    @Override
+    ConnectionMessagePipe createPipe() {
+        return new ConnectionMessagePipe(130, drop_frames, true);
+    }
+
+    @Override
+    int producerCount() {
+        return 1;
+    }
+}
@@ -0,0 +1,78 @@
+package net.theonicolaou.p2pvoice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Producer threads send as fast as they can while the benchmark thread receives, so the score is how
+// many messages get through per second. How long each one spent in the pipe is printed after every
+// iteration, since JMH has no way to report that itself. Subclasses pick the pipe and the producers.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class PipeBenchmark {
+    private static final int message_size = 160;    // About as big as an audio frame
+
+    private ConnectionMessagePipe pipe;
+    private Thread[] producers;
+    private volatile boolean running;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    abstract ConnectionMessagePipe createPipe();
+    abstract int producerCount();
+
+    @Setup(Level.Iteration)
+    public void start() {
+        pipe = createPipe();
+        pipe.openSender();
+        pipe.openReceiver();
+        latency.reset();
+        running = true;
+        producers = new Thread[producerCount()];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(this::produce);
+            producers[i].start();
+        }
+    }
+
+    private void produce() {
+        while (running) {
+            ConnectionMessage message = ConnectionMessage.obtain(Connection.DATA_AUDIO, message_size);
+            message.timestamp = System.nanoTime();  // in nanoseconds here
+            // Failing only counts when the pipe was closed, dropping on a full pipe is fine
+            if (!pipe.send(message) && !pipe.isOpen())
+                break;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws InterruptedException {
+        running = false;
+        pipe.closeReceiver();
+        for (Thread producer : producers)
+            producer.join();
+        System.out.println(latency.summary());
+    }
+
+    @Benchmark
+    public int receive() {
+        ConnectionMessage message = pipe.receive();
+        if (message == null)
+            return 0;
+        latency.record(System.nanoTime() - message.timestamp);
+        int length = message.length;
+        message.recycle();
+        return length;
+    }
+}
@@ -0,0 +1,107 @@
+package net.theonicolaou.p2pvoice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+// Framing messages onto a stream and parsing them back, over in-memory streams so only the framing
+// gets measured. The loops follow ConnectionServer/ConnectionClient's threadOutgoing and
+// threadIncoming, with ConnectionFrameCodec reading headers and payloads straight from the stream.
+// Scores are per message.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFramingBenchmark {
+    private static final int messages = 64;
+
+    // Audio frame, video fragment, video frame
+    @Param({"160", "1400", "60000"})
+    public int payload_size;
+
+    private final ConnectionMessage[] outgoing = new ConnectionMessage[messages];
+    private final ByteBuffer header = ByteBuffer.allocate(Connection.MSG_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ConnectionFrameCodec codec = new ConnectionFrameCodec();
+    private ByteArrayOutputStream sink;
+    private ByteArrayInputStream source;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        for (int i = 0; i < messages; i++) {
+            outgoing[i] = ConnectionMessage.obtain(i % 2 == 0 ? Connection.DATA_VIDEO : Connection.DATA_AUDIO, payload_size);
+            outgoing[i].sequence = i;
+            outgoing[i].timestamp = i * 10000L;
+        }
+        sink = new ByteArrayOutputStream(messages * (Connection.MSG_HEADER_SIZE + payload_size));
+        write();
+        source = new ByteArrayInputStream(sink.toByteArray());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        codec.reset();
+        for (ConnectionMessage message : outgoing)
+            message.recycle();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(messages)
+    public int write() throws IOException {
+        sink.reset();
+        for (ConnectionMessage message : outgoing)
+            writeMessage(sink, message);
+        return sink.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(messages)
+    public long read() throws IOException {
+        source.reset();
+        long sum = 0;
+        ConnectionMessage message;
+        while ((message = readMessage(source)) != null) {
+            sum += message.sequence + message.length;
+            message.recycle();
+        }
+        return sum;
+    }
+
+    private void writeMessage(OutputStream socket_writer, ConnectionMessage message) throws IOException {
+        ConnectionFrameCodec.writeHeader(message, header);
+        socket_writer.write(header.array());
+        socket_writer.write(message.data, 0, message.length);
+    }
+
+    // Returns null at the end of the stream
+    private ConnectionMessage readMessage(InputStream socket_reader) throws IOException {
+        while (true) {
+            ConnectionMessage message = codec.take();
+            if (message != null)
+                return message;
+            if (!codec.read(socket_reader))
+                return null;
+        }
+    }
+}
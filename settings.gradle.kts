@@ -21,3 +21,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "P2PVoice"
 include(":app")
+include(":benchmark")